@@ -0,0 +1,86 @@
+package org.dash14.mqtt.topic.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.dash14.mqtt.topic.TopicDispatcher;
+import org.dash14.mqtt.topic.TopicHandler;
+import org.dash14.mqtt.topic.benchmark.DispatchBenchmark.Engine;
+import org.dash14.mqtt.topic.benchmark.TopicFilterSets.Scenario;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of {@link TopicDispatcher#dispatch(String, Object)} from multiple threads,
+ * with and without changes of handlers at the same time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ConcurrentDispatchBenchmark {
+
+    @Param({ "IOT_MIXED" })
+    public Scenario scenario;
+
+    @Param({ "100000" })
+    public int filterCount;
+
+    @Param({ "BASELINE", "CACHED" })
+    public Engine engine;
+
+    private TopicDispatcher<Object> _dispatcher;
+
+    private String[] _topics;
+
+    private String[] _churnFilters;
+
+    private TopicHandler<Object> _churnHandler;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        TopicFilterSets sets = TopicFilterSets.create(scenario, filterCount, 4096, 1L);
+        _dispatcher = DispatchBenchmark.createDispatcher(sets.getFilters(), engine, blackhole);
+        _topics = sets.getTopics();
+        _churnFilters = TopicFilterSets.create(scenario, 1024, 0, 2L).getFilters();
+        _churnHandler = (topic, data) -> blackhole.consume(data);
+    }
+
+    /** Dispatching from 8 threads */
+    @Benchmark
+    @Threads(8)
+    public boolean contended() {
+        return dispatchRandomTopic();
+    }
+
+    /** Dispatching from 7 threads while another thread adds and removes handlers */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(7)
+    public boolean churnDispatch() {
+        return dispatchRandomTopic();
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public boolean churnSubscribe() {
+        String filter = _churnFilters[ThreadLocalRandom.current().nextInt(_churnFilters.length)];
+        _dispatcher.addHandler(filter, _churnHandler);
+        return _dispatcher.removeHandler(filter, _churnHandler);
+    }
+
+    private boolean dispatchRandomTopic() {
+        String topic = _topics[ThreadLocalRandom.current().nextInt(_topics.length)];
+        return _dispatcher.dispatch(topic, topic);
+    }
+}
@@ -0,0 +1,123 @@
+package org.dash14.mqtt.topic.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.dash14.mqtt.topic.TopicDispatcher;
+import org.dash14.mqtt.topic.TopicHandler;
+import org.dash14.mqtt.topic.benchmark.TopicFilterSets.Scenario;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of {@link TopicDispatcher#dispatch(String, Object)} and
+ * {@link TopicDispatcher#dispatchUtf8(byte[], int, int, Object)} on a single thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    /** How the dispatcher matches topics; the others are compared against {@link #BASELINE} */
+    public enum Engine {
+        /** Tree of matchers with the default settings; the engine to be compared against */
+        BASELINE,
+        /** After {@link TopicDispatcher#compile()} */
+        COMPILED,
+        /** With {@link TopicDispatcher#enableMatchCache(long)} */
+        CACHED,
+        /** Tree of matchers with {@link TopicDispatcher#enableMetrics()} */
+        METRICS
+    }
+
+    @Param
+    public Scenario scenario;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int filterCount;
+
+    @Param
+    public Engine engine;
+
+    private TopicDispatcher<Object> _dispatcher;
+
+    private String[] _topics;
+
+    /** UTF-8 bytes of {@link #_topics} */
+    private byte[][] _topicBytes;
+
+    private int _index;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        TopicFilterSets sets = TopicFilterSets.create(scenario, filterCount, 4096, 1L);
+        _dispatcher = createDispatcher(sets.getFilters(), engine, blackhole);
+        _topics = sets.getTopics();
+        _topicBytes = new byte[_topics.length][];
+        for (int i = 0; i < _topics.length; i++) {
+            _topicBytes[i] = _topics[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public boolean dispatch() {
+        String topic = _topics[_index];
+        _index = (_index + 1) & (_topics.length - 1);
+        return _dispatcher.dispatch(topic, topic);
+    }
+
+    /** A topic received as bytes, decoded before dispatching */
+    @Benchmark
+    public boolean decodeAndDispatch() {
+        byte[] topic = _topicBytes[_index];
+        _index = (_index + 1) & (_topicBytes.length - 1);
+        return _dispatcher.dispatch(new String(topic, StandardCharsets.UTF_8), topic);
+    }
+
+    /** A topic received as bytes, dispatched without decoding */
+    @Benchmark
+    public boolean dispatchUtf8() {
+        byte[] topic = _topicBytes[_index];
+        _index = (_index + 1) & (_topicBytes.length - 1);
+        return _dispatcher.dispatchUtf8(topic, 0, topic.length, topic);
+    }
+
+    static List<Map.Entry<String, TopicHandler<Object>>> entries(String[] filters, TopicHandler<Object> handler) {
+        List<Map.Entry<String, TopicHandler<Object>>> entries = new ArrayList<>(filters.length);
+        for (String filter : filters) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(filter, handler));
+        }
+        return entries;
+    }
+
+    static TopicDispatcher<Object> createDispatcher(String[] filters, Engine engine, final Blackhole blackhole) {
+        TopicDispatcher<Object> dispatcher = new TopicDispatcher<>();
+        TopicHandler<Object> handler = (topic, data) -> blackhole.consume(data);
+        dispatcher.addHandlers(entries(filters, handler));
+        switch (engine) {
+        case COMPILED:
+            dispatcher.compile();
+            break;
+        case CACHED:
+            dispatcher.enableMatchCache(1 << 16);
+            break;
+        case METRICS:
+            dispatcher.enableMetrics();
+            break;
+        default:
+            break;
+        }
+        return dispatcher;
+    }
+}
@@ -0,0 +1,89 @@
+package org.dash14.mqtt.topic.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.dash14.mqtt.topic.TopicDispatcher;
+import org.dash14.mqtt.topic.TopicHandler;
+import org.dash14.mqtt.topic.TopicSubscription;
+import org.dash14.mqtt.topic.benchmark.TopicFilterSets.Scenario;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of {@link TopicDispatcher#addHandler(String, TopicHandler)},
+ * {@link TopicDispatcher#removeHandler(String, TopicHandler)} and
+ * {@link TopicDispatcher#removeSubscription(TopicSubscription)} with existing handlers,
+ * and of {@link TopicDispatcher#addHandlers(Iterable)} and {@link TopicDispatcher#replaceHandlers(Iterable)}
+ * with all handlers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class SubscriptionBenchmark {
+
+    @Param
+    public Scenario scenario;
+
+    @Param({ "1000", "100000" })
+    public int filterCount;
+
+    private TopicDispatcher<Object> _dispatcher;
+
+    private String[] _filters;
+
+    private List<Map.Entry<String, TopicHandler<Object>>> _entries;
+
+    private final TopicHandler<Object> _handler = (topic, data) -> {};
+
+    private int _index;
+
+    @Setup
+    public void setUp() {
+        _filters = TopicFilterSets.create(scenario, filterCount, 0, 1L).getFilters();
+        _entries = DispatchBenchmark.entries(_filters, _handler);
+        _dispatcher = new TopicDispatcher<>();
+        _dispatcher.addHandlers(_entries);
+    }
+
+    /** Add a handler to an existing filter and remove it */
+    @Benchmark
+    public boolean addAndRemove() {
+        String filter = _filters[_index];
+        _index = (_index + 1) % _filters.length;
+        _dispatcher.addHandler(filter, _handler);
+        return _dispatcher.removeHandler(filter, _handler);
+    }
+
+    /** Add a handler to an existing filter and remove it by the returned handle */
+    @Benchmark
+    public boolean addAndRemoveSubscription() {
+        String filter = _filters[_index];
+        _index = (_index + 1) % _filters.length;
+        return _dispatcher.removeSubscription(_dispatcher.addHandler(filter, _handler));
+    }
+
+    /** Add all handlers to an empty dispatcher, as on starting; mostly parsing of topic-filters */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TopicDispatcher<Object> loadAll() {
+        TopicDispatcher<Object> dispatcher = new TopicDispatcher<>();
+        dispatcher.addHandlers(_entries);
+        return dispatcher;
+    }
+
+    /** Replace all handlers, as on reconnecting */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TopicDispatcher<Object> replaceAll() {
+        _dispatcher.replaceHandlers(_entries);
+        return _dispatcher;
+    }
+}
@@ -0,0 +1,149 @@
+package org.dash14.mqtt.topic.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generators of topic-filters and topics for benchmarks.
+ */
+public final class TopicFilterSets {
+
+    /** Kinds of topic-filter sets */
+    public enum Scenario {
+        /** Filters without wildcards: tenant/device/telemetry */
+        EXACT,
+        /** Deep filters ending with '#' at every level of 8-level chains, which share upper levels */
+        DEEP_SHARP,
+        /** Filters under a long shared prefix: org/site/building/floor/room/device{n}/+/telemetry */
+        DEEP_CHAIN,
+        /** Many '+' filters under a shared prefix: sensors/+/value{n} */
+        PLUS_FANOUT,
+        /** Mixed filters of an IoT application */
+        IOT_MIXED
+    }
+
+    private final String[] _filters;
+    private final String[] _topics;
+
+    private TopicFilterSets(String[] filters, String[] topics) {
+        _filters = filters;
+        _topics = topics;
+    }
+
+    public String[] getFilters() {
+        return _filters;
+    }
+
+    /** @return Topics to be dispatched; most of them match some filters */
+    public String[] getTopics() {
+        return _topics;
+    }
+
+    /**
+     * Create a set of topic-filters and topics.
+     * @param scenario A kind of the set
+     * @param filterCount Number of topic-filters; all of them are distinct
+     * @param topicCount Number of topics
+     * @param seed Seed of random numbers
+     */
+    public static TopicFilterSets create(Scenario scenario, int filterCount, int topicCount, long seed) {
+        Random random = new Random(seed);
+        List<String> filters = new ArrayList<>(filterCount);
+        List<String> topics = new ArrayList<>(topicCount);
+
+        switch (scenario) {
+        case EXACT:
+            for (int i = 0; i < filterCount; i++) {
+                filters.add(deviceTopic(i) + "/telemetry");
+            }
+            for (int i = 0; i < topicCount; i++) {
+                topics.add(deviceTopic(random.nextInt(filterCount)) + "/telemetry");
+            }
+            break;
+
+        case DEEP_SHARP: {
+            // upper levels of chains are shared, so only new filters are added
+            Set<String> unique = new LinkedHashSet<>();
+            int chains = 0;
+            for (; unique.size() < filterCount; chains++) {
+                StringBuilder filter = new StringBuilder("org" + (chains % 16));
+                for (int level = 1; level < 8 && unique.size() < filterCount; level++) {
+                    filter.append("/l").append(level).append('-').append(chains % (level * 7 + 1));
+                    unique.add(filter + "/#");
+                }
+            }
+            filters.addAll(unique);
+            for (int i = 0; i < topicCount; i++) {
+                int n = random.nextInt(chains);
+                StringBuilder topic = new StringBuilder("org" + (n % 16));
+                for (int level = 1; level < 10; level++) {
+                    topic.append("/l").append(level).append('-').append(n % (level * 7 + 1));
+                }
+                topics.add(topic.toString());
+            }
+            break;
+        }
+
+        case DEEP_CHAIN:
+            for (int i = 0; i < filterCount; i++) {
+                filters.add("org/site/building/floor/room/device" + i + "/+/telemetry");
+            }
+            for (int i = 0; i < topicCount; i++) {
+                topics.add("org/site/building/floor/room/device" + random.nextInt(filterCount)
+                        + "/sensor" + random.nextInt(16) + "/telemetry");
+            }
+            break;
+
+        case PLUS_FANOUT:
+            for (int i = 0; i < filterCount; i++) {
+                filters.add("sensors/+/value" + i);
+            }
+            for (int i = 0; i < topicCount; i++) {
+                topics.add("sensors/device" + random.nextInt(10000) + "/value" + random.nextInt(filterCount));
+            }
+            break;
+
+        case IOT_MIXED: {
+            // in every 8 filters: a site, a building, an alarm and 5 devices
+            int sites = 0;
+            int devices = 0;
+            for (int i = 0; filters.size() < filterCount; i++) {
+                switch (i % 8) {
+                case 0: filters.add("site" + sites + "/+/status"); break;
+                case 1: filters.add("site" + sites + "/building" + (sites % 13) + "/#"); break;
+                case 2: filters.add("+/+/alarm/" + sites); sites++; break;
+                default: filters.add(deviceTopic(devices++) + "/telemetry"); break;
+                }
+            }
+            sites = Math.max(1, sites);
+            devices = Math.max(1, devices);
+            for (int i = 0; i < topicCount; i++) {
+                int n = random.nextInt(sites);
+                switch (random.nextInt(4)) {
+                case 0: topics.add("site" + n + "/building" + (n % 13) + "/status"); break;
+                case 1: topics.add("site" + n + "/gw" + n + "/alarm/" + n); break;
+                case 2: topics.add("unknown/" + n + "/telemetry"); break;
+                default: topics.add(deviceTopic(random.nextInt(devices)) + "/telemetry"); break;
+                }
+            }
+            break;
+        }
+
+        default:
+            throw new IllegalArgumentException(scenario.name());
+        }
+        // a duplicated filter would measure calls of the same handler instead of matching
+        if (new HashSet<>(filters).size() != filterCount) {
+            throw new IllegalStateException("duplicated filters: " + scenario);
+        }
+        return new TopicFilterSets(filters.toArray(new String[0]), topics.toArray(new String[0]));
+    }
+
+    private static String deviceTopic(int n) {
+        return "tenant" + (n % 64) + "/device" + n;
+    }
+}
@@ -0,0 +1,96 @@
+package org.dash14.mqtt.topic;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A topic of UTF-8 bytes viewed as characters without decoding.
+ *
+ * <p>
+ * Most topics consist of ASCII characters, whose UTF-8 bytes are the same as the characters,
+ * so matching can read the bytes directly. The string is created only when requested by
+ * {@link #toString()}, for example when a matched handler is called.
+ * A topic which has a non-ASCII character is decoded to a string by {@link #of(byte[], int, int)}.
+ * </p>
+ */
+@NotThreadSafe
+/* package */ final class AsciiTopic implements CharSequence {
+
+    private final byte[] _bytes;
+
+    private final int _offset;
+
+    private final int _length;
+
+    /** Created on the first {@link #toString()} */
+    private String _string;
+
+    private AsciiTopic(byte[] bytes, int offset, int length) {
+        _bytes = bytes;
+        _offset = offset;
+        _length = length;
+    }
+
+    /**
+     * @param bytes UTF-8 bytes of a topic
+     * @param offset Start position of the topic in {@code bytes}
+     * @param length Number of bytes of the topic
+     * @return A view of the bytes if all bytes are ASCII characters, or a decoded string
+     */
+    /* package */ static CharSequence of(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > bytes.length - length) {
+            throw new IndexOutOfBoundsException(
+                    "offset=" + offset + ", length=" + length + ", bytes.length=" + bytes.length);
+        }
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (bytes[i] < 0) {
+                return new String(bytes, offset, length, StandardCharsets.UTF_8);
+            }
+        }
+        return new AsciiTopic(bytes, offset, length);
+    }
+
+    /**
+     * @param buffer UTF-8 bytes of a topic between the position and the limit; the position is not changed
+     * @return A view of the bytes if all bytes are ASCII characters, or a decoded string
+     */
+    /* package */ static CharSequence of(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return of(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        // a direct buffer; copying is still cheaper than decoding
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return of(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public int length() {
+        return _length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= _length) {
+            throw new IndexOutOfBoundsException("index=" + index + ", length=" + _length);
+        }
+        return (char) _bytes[_offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        String string = _string;
+        if (string == null) {
+            string = new String(_bytes, _offset, _length, StandardCharsets.US_ASCII);
+            _string = string;
+        }
+        return string;
+    }
+}
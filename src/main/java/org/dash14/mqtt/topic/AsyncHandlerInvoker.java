@@ -0,0 +1,142 @@
+package org.dash14.mqtt.topic;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Invoker of matched handlers on an executor.
+ *
+ * <p>
+ * Invocations are distributed to serial queues by the hash of the topic or the handler,
+ * so that messages of a same topic (or to a same handler) are handled in the dispatched order.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+@ThreadSafe
+/* package */ final class AsyncHandlerInvoker<Data> {
+
+    private final SerialExecutor[] _stripes;
+
+    private final TopicDispatcher.Ordering _ordering;
+
+    /* package */ AsyncHandlerInvoker(Executor executor, int stripes, TopicDispatcher.Ordering ordering) {
+        _stripes = new SerialExecutor[stripes];
+        for (int i = 0; i < stripes; i++) {
+            _stripes[i] = new SerialExecutor(executor);
+        }
+        _ordering = ordering;
+    }
+
+    /**
+     * Invoke handlers asynchronously.
+     * @param topic A topic
+     * @param data A message data passing to handlers
+     * @param handlers Matched subscriptions; must not be modified after that
+     * @return A future completed when all handlers have returned
+     */
+    /* package */ ListenableFuture<Boolean> invoke(final String topic, final Data data,
+            final List<TopicSubscription<Data>> handlers) {
+        final SettableFuture<Boolean> future = SettableFuture.create();
+        if (handlers.isEmpty()) {
+            future.set(false);
+            return future;
+        }
+
+        try {
+            if (_ordering == TopicDispatcher.Ordering.TOPIC) {
+                stripe(topic.hashCode()).execute(new SerialExecutor.Task() {
+                    @Override
+                    public void run() {
+                        Throwable failure = null;
+                        for (TopicSubscription<Data> subscription : handlers) {
+                            try {
+                                TopicDispatcher.handle(subscription.getHandler(), subscription.getLevels(),
+                                        topic, data);
+                            } catch (Throwable t) {
+                                if (failure == null) {
+                                    failure = t;
+                                }
+                            }
+                        }
+                        complete(future, failure);
+                    }
+
+                    @Override
+                    public void discard(RuntimeException cause) {
+                        future.setException(cause);
+                    }
+                });
+            } else {
+                final AtomicInteger remaining = new AtomicInteger(handlers.size());
+                final AtomicReference<Throwable> failure = new AtomicReference<>();
+                for (TopicSubscription<Data> subscription : handlers) {
+                    TopicHandler<Data> selected = subscription.getHandler();
+                    final boolean shared = selected instanceof SharedSubscriptionGroup;
+                    if (shared) {
+                        // distributed by the handler selected from the group, loaded while queued
+                        selected = ((SharedSubscriptionGroup<Data>) selected).selectQueued(topic);
+                    }
+                    final TopicHandler<Data> handler = selected;
+                    final String[] levels = subscription.getLevels();
+                    SerialExecutor.Task task = new SerialExecutor.Task() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (shared) {
+                                    SharedSubscriptionGroup.handleQueued(handler, topic, data);
+                                } else {
+                                    TopicDispatcher.handle(handler, levels, topic, data);
+                                }
+                            } catch (Throwable t) {
+                                failure.compareAndSet(null, t);
+                            }
+                            if (remaining.decrementAndGet() == 0) {
+                                complete(future, failure.get());
+                            }
+                        }
+
+                        @Override
+                        public void discard(RuntimeException cause) {
+                            if (shared) {
+                                SharedSubscriptionGroup.cancelQueued(handler);
+                            }
+                            future.setException(cause);
+                        }
+                    };
+                    try {
+                        stripe(System.identityHashCode(handler)).execute(task);
+                    } catch (RuntimeException e) {
+                        if (shared) {
+                            SharedSubscriptionGroup.cancelQueued(handler);
+                        }
+                        throw e;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // rejected by the executor
+            future.setException(e);
+        }
+        return future;
+    }
+
+    private SerialExecutor stripe(int hash) {
+        hash ^= (hash >>> 16);
+        return _stripes[(hash & Integer.MAX_VALUE) % _stripes.length];
+    }
+
+    private static void complete(SettableFuture<Boolean> future, Throwable failure) {
+        if (failure == null) {
+            future.set(true);
+        } else {
+            future.setException(failure);
+        }
+    }
+}
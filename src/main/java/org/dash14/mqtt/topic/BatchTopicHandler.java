@@ -0,0 +1,15 @@
+package org.dash14.mqtt.topic;
+
+import java.util.List;
+
+/**
+ * Handler which can handle consecutive messages of a same topic at once.
+ * <p>
+ * {@link TopicDispatcher#dispatchBatch(List)} calls {@link #handleTopicBatch(String, List)}
+ * instead of {@link #handleTopic(String, Object)} for each message.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+public interface BatchTopicHandler<Data> extends TopicHandler<Data> {
+    void handleTopicBatch(String topic, List<Data> data);
+}
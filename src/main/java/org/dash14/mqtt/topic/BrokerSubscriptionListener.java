@@ -0,0 +1,20 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Set;
+
+/**
+ * Listener of changes of topic-filters to subscribe at a broker.
+ * @see TopicDispatcher#enableBrokerSubscriptions(BrokerSubscriptionListener)
+ */
+public interface BrokerSubscriptionListener {
+    /**
+     * Called when the minimal set of topic-filters covering all handlers is changed.
+     * <p>
+     * To avoid losing messages, topic-filters should be subscribed before unsubscribing the others.
+     * It is called while handlers are being changed, and must not change handlers of the dispatcher.
+     * </p>
+     * @param subscribe Topic-filters added to the set
+     * @param unsubscribe Topic-filters removed from the set
+     */
+    void subscriptionsChanged(Set<String> subscribe, Set<String> unsubscribe);
+}
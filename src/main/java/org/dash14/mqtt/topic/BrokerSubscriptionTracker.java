@@ -0,0 +1,141 @@
+package org.dash14.mqtt.topic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Keeps the minimal set of topic-filters to subscribe at a broker;
+ * registered topic-filters which are not covered by another registered topic-filter.
+ *
+ * <p>
+ * When handlers are changed, only topic-filters related to the changed topic-filters
+ * are examined by walking the tree. A shared subscription is subscribed by its filter part,
+ * because handlers of a group are selected by the dispatcher.
+ * It is guarded by the lock of {@link TopicDispatcher}.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+@NotThreadSafe
+/* package */ final class BrokerSubscriptionTracker<Data> {
+
+    private final BrokerSubscriptionListener _listener;
+
+    /** Current minimal set */
+    private final Set<String> _subscriptions = new LinkedHashSet<>();
+
+    /**
+     * @param listener A listener of changes
+     * @param tree Current tree; the initial set is computed without notifying the listener
+     */
+    /* package */ BrokerSubscriptionTracker(BrokerSubscriptionListener listener,
+            HierarchicallyTopicMatcher<Data> tree) {
+        _listener = listener;
+        List<TopicSubscription<Data>> all = new ArrayList<>();
+        tree.collectAll(all);
+        Map<String, String[]> candidates = new LinkedHashMap<>();
+        addFilters(all, candidates);
+        for (Map.Entry<String, String[]> candidate : candidates.entrySet()) {
+            if (isMinimal(tree, candidate.getKey(), candidate.getValue())) {
+                _subscriptions.add(candidate.getKey());
+            }
+        }
+    }
+
+    /** @return Current minimal set */
+    /* package */ Set<String> getSubscriptions() {
+        return ImmutableSet.copyOf(_subscriptions);
+    }
+
+    /**
+     * Update the set after subscriptions are added or removed.
+     * @param tree A tree which has the changes
+     * @param added Added subscriptions
+     * @param removed Removed subscriptions
+     */
+    /* package */ void update(HierarchicallyTopicMatcher<Data> tree,
+            Collection<TopicSubscription<Data>> added, Collection<TopicSubscription<Data>> removed) {
+        Map<String, String[]> candidates = new LinkedHashMap<>();
+        addFilters(added, candidates);
+        addFilters(removed, candidates);
+
+        List<TopicSubscription<Data>> related = new ArrayList<>();
+        for (TopicSubscription<Data> subscription : added) {
+            // a subscribed topic-filter may be covered by the added one
+            tree.collectCovered(subscription.getLevels(), 0, related);
+        }
+        for (TopicSubscription<Data> subscription : removed) {
+            // a topic-filter covered by the removed one may be uncovered
+            tree.collectCovered(subscription.getLevels(), 0, related);
+        }
+        addFilters(related, candidates);
+
+        Set<String> subscribe = new LinkedHashSet<>();
+        Set<String> unsubscribe = new LinkedHashSet<>();
+        for (Map.Entry<String, String[]> candidate : candidates.entrySet()) {
+            String filter = candidate.getKey();
+            boolean minimal = isMinimal(tree, filter, candidate.getValue());
+            if (minimal && _subscriptions.add(filter)) {
+                subscribe.add(filter);
+            } else if (!minimal && _subscriptions.remove(filter)) {
+                unsubscribe.add(filter);
+            }
+        }
+        notifyListener(subscribe, unsubscribe);
+    }
+
+    /**
+     * Update the set after all subscriptions are replaced.
+     * @param tree A new tree
+     */
+    /* package */ void reset(HierarchicallyTopicMatcher<Data> tree) {
+        Set<String> subscriptions = new BrokerSubscriptionTracker<>(_listener, tree)._subscriptions;
+        Set<String> subscribe = new LinkedHashSet<>(subscriptions);
+        subscribe.removeAll(_subscriptions);
+        Set<String> unsubscribe = new LinkedHashSet<>(_subscriptions);
+        unsubscribe.removeAll(subscriptions);
+        _subscriptions.clear();
+        _subscriptions.addAll(subscriptions);
+        notifyListener(subscribe, unsubscribe);
+    }
+
+    private void notifyListener(Set<String> subscribe, Set<String> unsubscribe) {
+        if (!subscribe.isEmpty() || !unsubscribe.isEmpty()) {
+            _listener.subscriptionsChanged(ImmutableSet.copyOf(subscribe), ImmutableSet.copyOf(unsubscribe));
+        }
+    }
+
+    /**
+     * @return {@code true} if the topic-filter is registered and not covered by another registered topic-filter
+     */
+    private static <Data> boolean isMinimal(HierarchicallyTopicMatcher<Data> tree, String filter, String[] levels) {
+        List<TopicSubscription<Data>> covering = new ArrayList<>();
+        tree.collectCovering(levels, 0, covering);
+        boolean registered = false;
+        for (TopicSubscription<Data> subscription : covering) {
+            if (!subscription.getFilter().equals(filter)) {
+                return false;
+            }
+            registered = true;
+        }
+        return registered;
+    }
+
+    private static <Data> void addFilters(Collection<TopicSubscription<Data>> subscriptions,
+            Map<String, String[]> filters) {
+        for (TopicSubscription<Data> subscription : subscriptions) {
+            String filter = subscription.getFilter();
+            if (!filters.containsKey(filter)) {
+                filters.put(filter, subscription.getLevels());
+            }
+        }
+    }
+}
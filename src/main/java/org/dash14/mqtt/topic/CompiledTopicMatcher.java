@@ -0,0 +1,351 @@
+package org.dash14.mqtt.topic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A matcher compiled from a tree of {@link HierarchicallyTopicMatcher}.
+ *
+ * <p>
+ * All hierarchies of the tree are numbered, and transitions and handlers are packed into
+ * arrays indexed by the number. Names of hierarchies are interned to numbers,
+ * so a transition is looked up by a pair of numbers in one table.
+ * It matches the same handlers in the same order as the original tree,
+ * with fewer objects to hold and to follow.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+@Immutable
+/* package */ final class CompiledTopicMatcher<Data> {
+
+    private static final int NONE = -1;
+
+    private static final long EMPTY_KEY = -1L;
+
+    /** Interned names of hierarchies; {@code null} if the slot is empty */
+    private final String[] _names;
+
+    /** Hash codes of {@link #_names} */
+    private final int[] _nameHashes;
+
+    /** Numbers of {@link #_names} */
+    private final int[] _nameIds;
+
+    /** Keys of transitions by name; (node number &lt;&lt; 32 | name number), or {@link #EMPTY_KEY} */
+    private final long[] _transitionKeys;
+
+    /** Destination nodes of {@link #_transitionKeys} */
+    private final int[] _transitionTargets;
+
+    /** Destination nodes of transitions by '+', or {@link #NONE} */
+    private final int[] _singleLevelTargets;
+
+    /** Subscriptions of all nodes */
+    private final Object[] _handlers;
+
+    /**
+     * Start positions in {@link #_handlers} for each node (and the end position at the last).
+     * Handlers of node {@code i} are in {@code [_handlerOffsets[i], _multiLevelHandlerOffsets[i])},
+     * and handlers for '#' are in {@code [_multiLevelHandlerOffsets[i], _handlerOffsets[i + 1])}.
+     */
+    private final int[] _handlerOffsets;
+
+    /** Start positions of handlers for '#' in {@link #_handlers} for each node */
+    private final int[] _multiLevelHandlerOffsets;
+
+    private CompiledTopicMatcher(String[] names, int[] nameHashes, int[] nameIds,
+            long[] transitionKeys, int[] transitionTargets, int[] singleLevelTargets,
+            Object[] handlers, int[] handlerOffsets, int[] multiLevelHandlerOffsets) {
+        _names = names;
+        _nameHashes = nameHashes;
+        _nameIds = nameIds;
+        _transitionKeys = transitionKeys;
+        _transitionTargets = transitionTargets;
+        _singleLevelTargets = singleLevelTargets;
+        _handlers = handlers;
+        _handlerOffsets = handlerOffsets;
+        _multiLevelHandlerOffsets = multiLevelHandlerOffsets;
+    }
+
+    /** @return Estimated bytes of this matcher, excluding names and subscriptions */
+    /* package */ long estimateBytes() {
+        return MemoryReport.objectBytes(9, 0)
+                + MemoryReport.arrayBytes(_names.length, 4) * 3
+                + MemoryReport.arrayBytes(_transitionKeys.length, 8)
+                + MemoryReport.arrayBytes(_transitionTargets.length, 4)
+                + MemoryReport.arrayBytes(_singleLevelTargets.length, 4)
+                + MemoryReport.arrayBytes(_handlers.length, 4)
+                + MemoryReport.arrayBytes(_handlerOffsets.length, 4)
+                + MemoryReport.arrayBytes(_multiLevelHandlerOffsets.length, 4);
+    }
+
+    /**
+     * Compile a tree.
+     * @param root The root of a tree
+     * @return A compiled matcher
+     */
+    /* package */ static <Data> CompiledTopicMatcher<Data> compile(HierarchicallyTopicMatcher<Data> root) {
+        // number nodes in breadth-first order; a child has a larger number than the parent
+        List<HierarchicallyTopicMatcher<Data>> nodes = new ArrayList<>();
+        nodes.add(root);
+        int handlerCount = 0;
+        int transitionCount = 0;
+        Map<String, Integer> nameIds = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            HierarchicallyTopicMatcher<Data> node = nodes.get(i);
+            handlerCount += node.getHandlers().size() + node.getMultiLevelHandlers().size();
+            TopicLevelMap<HierarchicallyTopicMatcher<Data>> children = node.getChildren();
+            for (int slot = 0; slot < children.slots(); slot++) {
+                String name = children.keyAt(slot);
+                if (name != null) {
+                    if (!nameIds.containsKey(name)) {
+                        nameIds.put(name, nameIds.size());
+                    }
+                    nodes.add(children.valueAt(slot));
+                    transitionCount++;
+                }
+            }
+            if (node.getSingleLevelChild() != null) {
+                nodes.add(node.getSingleLevelChild());
+            }
+        }
+
+        // names
+        int nameCapacity = capacityFor(nameIds.size());
+        String[] names = new String[nameCapacity];
+        int[] nameHashes = new int[nameCapacity];
+        int[] nameNumbers = new int[nameCapacity];
+        for (Map.Entry<String, Integer> entry : nameIds.entrySet()) {
+            String name = entry.getKey();
+            int hash = name.hashCode();
+            int slot = spread(hash) & (nameCapacity - 1);
+            while (names[slot] != null) {
+                slot = (slot + 1) & (nameCapacity - 1);
+            }
+            names[slot] = name;
+            nameHashes[slot] = hash;
+            nameNumbers[slot] = entry.getValue();
+        }
+
+        // transitions and handlers
+        int transitionCapacity = capacityFor(transitionCount);
+        long[] transitionKeys = new long[transitionCapacity];
+        Arrays.fill(transitionKeys, EMPTY_KEY);
+        int[] transitionTargets = new int[transitionCapacity];
+        int[] singleLevelTargets = new int[nodes.size()];
+        Object[] handlers = new Object[handlerCount];
+        int[] handlerOffsets = new int[nodes.size() + 1];
+        int[] multiLevelHandlerOffsets = new int[nodes.size()];
+
+        int nextNode = 1;
+        int handlerPos = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            HierarchicallyTopicMatcher<Data> node = nodes.get(i);
+
+            handlerOffsets[i] = handlerPos;
+            for (TopicSubscription<Data> subscription : node.getHandlers()) {
+                handlers[handlerPos++] = subscription;
+            }
+            multiLevelHandlerOffsets[i] = handlerPos;
+            for (TopicSubscription<Data> subscription : node.getMultiLevelHandlers()) {
+                handlers[handlerPos++] = subscription;
+            }
+
+            // children are numbered in the same order as above
+            TopicLevelMap<HierarchicallyTopicMatcher<Data>> children = node.getChildren();
+            for (int slot = 0; slot < children.slots(); slot++) {
+                String name = children.keyAt(slot);
+                if (name != null) {
+                    long key = transitionKey(i, nameIds.get(name));
+                    int pos = spread(hashKey(key)) & (transitionCapacity - 1);
+                    while (transitionKeys[pos] != EMPTY_KEY) {
+                        pos = (pos + 1) & (transitionCapacity - 1);
+                    }
+                    transitionKeys[pos] = key;
+                    transitionTargets[pos] = nextNode++;
+                }
+            }
+            singleLevelTargets[i] = (node.getSingleLevelChild() != null) ? nextNode++ : NONE;
+        }
+        handlerOffsets[nodes.size()] = handlerPos;
+
+        return new CompiledTopicMatcher<>(names, nameHashes, nameNumbers, transitionKeys, transitionTargets,
+                singleLevelTargets, handlers, handlerOffsets, multiLevelHandlerOffsets);
+    }
+
+    /**
+     * Collect subscriptions matched with the topic.
+     * @param topic A topic
+     * @param matched A collection which matched subscriptions are added to
+     * @return {@code true} if matched least one subscription
+     * @see HierarchicallyTopicMatcher#matchHierarchically(CharSequence, int, Collection)
+     */
+    /* package */
+    boolean match(CharSequence topic, Collection<? super TopicSubscription<Data>> matchedHandlers) {
+        return match(topic, 0, 0, matchedHandlers);
+    }
+
+    private boolean match(CharSequence topic, int node, int start,
+            Collection<? super TopicSubscription<Data>> matchedHandlers) {
+        // '#' matches also the parent hierarchy ("abc/#" matches "abc")
+        boolean matched = addAll(_multiLevelHandlerOffsets[node], _handlerOffsets[node + 1], matchedHandlers);
+
+        int length = topic.length();
+        if (start > length) {
+            // Match current hierarchy
+            matched |= addAll(_handlerOffsets[node], _multiLevelHandlerOffsets[node], matchedHandlers);
+            return matched;
+        }
+
+        // Match next hierarchy
+        int end = start;
+        while (end < length && topic.charAt(end) != '/') {
+            end++;
+        }
+
+        int nameId = nameId(topic, start, end);
+        if (nameId != NONE) {
+            int child = transition(node, nameId);
+            if (child != NONE) {
+                matched |= match(topic, child, end + 1, matchedHandlers);
+            }
+        }
+        int singleLevelChild = _singleLevelTargets[node];
+        if (singleLevelChild != NONE) {
+            matched |= match(topic, singleLevelChild, end + 1, matchedHandlers);
+        }
+        return matched;
+    }
+
+    /**
+     * Restore the tree.
+     * @return The root of a tree which has the same handlers as the compiled one
+     */
+    /* package */ HierarchicallyTopicMatcher<Data> decompile() {
+        int nodeCount = _singleLevelTargets.length;
+
+        String[] namesById = new String[nodeCount];
+        for (int slot = 0; slot < _names.length; slot++) {
+            if (_names[slot] != null) {
+                namesById[_nameIds[slot]] = _names[slot];
+            }
+        }
+
+        // names of the transitions to each node, and children of each node
+        String[] nodeNames = new String[nodeCount];
+        int[] parents = new int[nodeCount];
+        for (int slot = 0; slot < _transitionKeys.length; slot++) {
+            long key = _transitionKeys[slot];
+            if (key != EMPTY_KEY) {
+                int target = _transitionTargets[slot];
+                parents[target] = (int) (key >>> 32);
+                nodeNames[target] = namesById[(int) key];
+            }
+        }
+        List<Map<String, HierarchicallyTopicMatcher<Data>>> children = new ArrayList<>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            children.add(null);
+        }
+
+        // build from leaves; a child has a larger number than the parent
+        @SuppressWarnings("unchecked")
+        HierarchicallyTopicMatcher<Data>[] built = new HierarchicallyTopicMatcher[nodeCount];
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            Map<String, HierarchicallyTopicMatcher<Data>> namedChildren = children.get(i);
+            int singleLevelChild = _singleLevelTargets[i];
+            built[i] = new HierarchicallyTopicMatcher<>(
+                    handlerList(_handlerOffsets[i], _multiLevelHandlerOffsets[i]),
+                    handlerList(_multiLevelHandlerOffsets[i], _handlerOffsets[i + 1]),
+                    (namedChildren != null)
+                        ? TopicLevelMap.copyOf(namedChildren)
+                        : TopicLevelMap.<HierarchicallyTopicMatcher<Data>>empty(),
+                    (singleLevelChild != NONE) ? built[singleLevelChild] : null);
+            children.set(i, null);
+
+            if (nodeNames[i] != null) {
+                Map<String, HierarchicallyTopicMatcher<Data>> siblings = children.get(parents[i]);
+                if (siblings == null) {
+                    siblings = new LinkedHashMap<>();
+                    children.set(parents[i], siblings);
+                }
+                siblings.put(nodeNames[i], built[i]);
+            }
+        }
+        return built[0];
+    }
+
+    private int nameId(CharSequence topic, int start, int end) {
+        int hash = TopicLevelMap.hash(topic, start, end);
+        int mask = _names.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            String name = _names[i];
+            if (name == null) {
+                return NONE;
+            }
+            if (_nameHashes[i] == hash && name.length() == end - start
+                    && TopicLevelMap.regionEquals(name, topic, start)) {
+                return _nameIds[i];
+            }
+        }
+    }
+
+    private int transition(int node, int nameId) {
+        long key = transitionKey(node, nameId);
+        int mask = _transitionKeys.length - 1;
+        for (int i = spread(hashKey(key)) & mask; ; i = (i + 1) & mask) {
+            long k = _transitionKeys[i];
+            if (k == key) {
+                return _transitionTargets[i];
+            }
+            if (k == EMPTY_KEY) {
+                return NONE;
+            }
+        }
+    }
+
+    private boolean addAll(int from, int to, Collection<? super TopicSubscription<Data>> matched) {
+        for (int i = from; i < to; i++) {
+            @SuppressWarnings("unchecked")
+            TopicSubscription<Data> subscription = (TopicSubscription<Data>) _handlers[i];
+            matched.add(subscription);
+        }
+        return from < to;
+    }
+
+    private List<TopicSubscription<Data>> handlerList(int from, int to) {
+        List<TopicSubscription<Data>> list = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            @SuppressWarnings("unchecked")
+            TopicSubscription<Data> subscription = (TopicSubscription<Data>) _handlers[i];
+            list.add(subscription);
+        }
+        return list;
+    }
+
+    private static long transitionKey(int node, int nameId) {
+        return ((long) node << 32) | nameId;
+    }
+
+    private static int hashKey(long key) {
+        return (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
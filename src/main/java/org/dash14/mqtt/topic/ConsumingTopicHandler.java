@@ -0,0 +1,25 @@
+package org.dash14.mqtt.topic;
+
+/**
+ * Handler which can stop calling handlers after it for a message.
+ * <p>
+ * {@link TopicDispatcher#dispatch(String, Object)} and {@link TopicDispatcher#dispatchBatch(java.util.List)}
+ * call {@link #consumeTopic(String, Object)} instead of {@link #handleTopic(String, Object)}.
+ * If it returns {@code true}, handlers of the same or lower priorities after this handler are not called
+ * for the message.
+ * </p>
+ * <p>
+ * {@link TopicDispatcher#dispatchAsync(String, Object)} and a shared subscription ({@code $share/...})
+ * also call {@link #consumeTopic(String, Object)}, but the result can't stop later handlers;
+ * with asynchronous dispatch, handlers run concurrently, and a shared subscription is called
+ * as one handler of the group.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ * @see TopicDispatcher#addHandler(String, TopicHandler, int)
+ */
+public interface ConsumingTopicHandler<Data> extends TopicHandler<Data> {
+    /**
+     * @return {@code true} if the message is consumed
+     */
+    boolean consumeTopic(String topic, Data data);
+}
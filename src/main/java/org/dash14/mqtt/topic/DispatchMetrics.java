@@ -0,0 +1,230 @@
+package org.dash14.mqtt.topic;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Counters and latencies of dispatching, recorded by {@link TopicDispatcher} while enabled
+ * by {@link TopicDispatcher#enableMetrics()}.
+ *
+ * <p>
+ * Recording does not take any lock; counters are {@link StripedCounters}, and values read
+ * while dispatching are not a consistent snapshot. Handlers are distinguished by
+ * {@code equals()}, in the same way as {@link TopicDispatcher#removeHandler(String, TopicHandler)}.
+ * Calls of a shared subscription are recorded by its topic-filter, as one handler.
+ * </p>
+ * <p>
+ * Values of a handler or a topic-filter are dropped when it is no longer registered to the dispatcher.
+ * </p>
+ */
+@ThreadSafe
+public final class DispatchMetrics implements DispatchMetricsMXBean {
+
+    /** Index of the number of dispatched messages in {@link #_counts} */
+    private static final int DISPATCH = 0;
+
+    /** Index of the number of unmatched messages in {@link #_counts} */
+    private static final int UNMATCHED = 1;
+
+    private final StripedCounters _counts = new StripedCounters(2);
+
+    private final LatencyHistogram _matchLatency = new LatencyHistogram();
+
+    private final LatencyHistogram _handlerLatency = new LatencyHistogram();
+
+    private final ConcurrentMap<String, StripedCounters> _filterMatchCounts = new ConcurrentHashMap<>();
+
+    /** Latencies by a handler, or by a topic-filter of a shared subscription */
+    private final ConcurrentMap<Object, LatencyHistogram> _handlerLatencies = new ConcurrentHashMap<>();
+
+    /* package */ DispatchMetrics() {
+    }
+
+    /**
+     * Record a result of matching.
+     * @param matched Matched subscriptions
+     * @param messages Number of messages of the topic
+     * @param nanos Time for matching
+     */
+    /* package */ void recordMatch(List<? extends TopicSubscription<?>> matched, int messages, long nanos) {
+        _counts.add(DISPATCH, messages);
+        _matchLatency.record(nanos);
+        if (matched.isEmpty()) {
+            _counts.add(UNMATCHED, messages);
+            return;
+        }
+        for (int i = 0; i < matched.size(); i++) {
+            String topicFilter = matched.get(i).getTopicFilter();
+            StripedCounters count = _filterMatchCounts.get(topicFilter);
+            if (count == null) {
+                count = new StripedCounters(1);
+                StripedCounters existing = _filterMatchCounts.putIfAbsent(topicFilter, count);
+                if (existing != null) {
+                    count = existing;
+                }
+            }
+            count.add(0, messages);
+        }
+    }
+
+    /**
+     * Record messages rejected before matching.
+     * @param messages Number of messages of the topic
+     */
+    /* package */ void recordRejected(int messages) {
+        _counts.add(DISPATCH, messages);
+        _counts.add(UNMATCHED, messages);
+    }
+
+    /**
+     * Record a call of a handler.
+     * @param subscription A subscription of a called handler
+     * @param nanos Time for the call
+     */
+    /* package */ void recordHandler(TopicSubscription<?> subscription, long nanos) {
+        // a group of a shared subscription is replaced by each change of its handlers
+        Object key = (subscription.getHandler() instanceof SharedSubscriptionGroup)
+                ? subscription.getTopicFilter() : subscription.getHandler();
+        LatencyHistogram latency = _handlerLatencies.get(key);
+        if (latency == null) {
+            latency = new LatencyHistogram();
+            LatencyHistogram existing = _handlerLatencies.putIfAbsent(key, latency);
+            if (existing != null) {
+                latency = existing;
+            }
+        }
+        latency.record(nanos);
+    }
+
+    /**
+     * Drop values of a handler which is no longer registered.
+     * @param handler A removed handler
+     */
+    /* package */ void removeHandler(TopicHandler<?> handler) {
+        _handlerLatencies.remove(handler);
+    }
+
+    /**
+     * Drop values of a topic-filter which is no longer registered.
+     * @param topicFilter A removed topic-filter
+     */
+    /* package */ void removeTopicFilter(String topicFilter) {
+        _filterMatchCounts.remove(topicFilter);
+        _handlerLatencies.remove(topicFilter);
+    }
+
+    /**
+     * Record time for calling all handlers matched with a topic.
+     * @param nanos Time for calling handlers
+     */
+    /* package */ void recordHandlers(long nanos) {
+        _handlerLatency.record(nanos);
+    }
+
+    @Override
+    public long getDispatchCount() {
+        return _counts.get(DISPATCH);
+    }
+
+    @Override
+    public long getUnmatchedCount() {
+        return _counts.get(UNMATCHED);
+    }
+
+    @Override
+    public long getMatchNanos() {
+        return _matchLatency.getTotalNanos();
+    }
+
+    @Override
+    public long getHandlerNanos() {
+        return _handlerLatency.getTotalNanos();
+    }
+
+    /** @return Latencies of matching topics with handlers */
+    @Nonnull
+    public LatencyHistogram getMatchLatency() {
+        return _matchLatency;
+    }
+
+    /** @return Latencies of calling all handlers matched with a topic */
+    @Nonnull
+    public LatencyHistogram getHandlerLatency() {
+        return _handlerLatency;
+    }
+
+    /**
+     * @param handler A handler
+     * @return Latencies of calls of the handler, or {@code null} if it has not been called
+     */
+    @Nullable
+    public LatencyHistogram getHandlerLatency(@Nonnull TopicHandler<?> handler) {
+        return _handlerLatencies.get(handler);
+    }
+
+    /**
+     * @param topicFilter A topic-filter
+     * @return Number of matched messages with the topic-filter
+     */
+    public long getFilterMatchCount(@Nonnull String topicFilter) {
+        StripedCounters count = _filterMatchCounts.get(topicFilter);
+        return (count != null) ? count.get(0) : 0L;
+    }
+
+    @Override
+    public Map<String, Long> getFilterMatchCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, StripedCounters> entry : _filterMatchCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get(0));
+        }
+        return ImmutableMap.copyOf(counts);
+    }
+
+    @Override
+    public Map<String, Long> getHandlerCallCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<Object, LatencyHistogram> entry : _handlerLatencies.entrySet()) {
+            addTo(counts, entry.getKey().toString(), entry.getValue().getCount());
+        }
+        return ImmutableMap.copyOf(counts);
+    }
+
+    @Override
+    public Map<String, Long> getHandlerCallNanos() {
+        Map<String, Long> nanos = new TreeMap<>();
+        for (Map.Entry<Object, LatencyHistogram> entry : _handlerLatencies.entrySet()) {
+            addTo(nanos, entry.getKey().toString(), entry.getValue().getTotalNanos());
+        }
+        return ImmutableMap.copyOf(nanos);
+    }
+
+    @Override
+    public void reset() {
+        _counts.reset();
+        _matchLatency.reset();
+        _handlerLatency.reset();
+        _filterMatchCounts.clear();
+        _handlerLatencies.clear();
+    }
+
+    private static void addTo(Map<String, Long> map, String key, long value) {
+        // handlers of the same name are summed up
+        Long current = map.get(key);
+        map.put(key, (current != null) ? current + value : value);
+    }
+
+    @Override
+    public String toString() {
+        return "dispatch=" + getDispatchCount() + ", unmatched=" + getUnmatchedCount()
+                + ", match={" + _matchLatency + "}, handlers={" + _handlerLatency + "}";
+    }
+}
@@ -0,0 +1,38 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Map;
+
+/**
+ * JMX interface of {@link DispatchMetrics}.
+ *
+ * <p>
+ * Register an instance returned by {@link TopicDispatcher#enableMetrics()} to an MBean server,
+ * for example {@code ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name)}.
+ * </p>
+ */
+public interface DispatchMetricsMXBean {
+
+    /** @return Number of dispatched messages */
+    long getDispatchCount();
+
+    /** @return Number of dispatched messages which are not matched with any handlers */
+    long getUnmatchedCount();
+
+    /** @return Sum of time for matching topics with handlers in nanoseconds */
+    long getMatchNanos();
+
+    /** @return Sum of time for calling handlers in nanoseconds */
+    long getHandlerNanos();
+
+    /** @return Number of matched messages by topic-filter */
+    Map<String, Long> getFilterMatchCounts();
+
+    /** @return Number of calls by handler; a key is {@code toString()} of a handler */
+    Map<String, Long> getHandlerCallCounts();
+
+    /** @return Sum of time of calls in nanoseconds by handler; a key is {@code toString()} of a handler */
+    Map<String, Long> getHandlerCallNanos();
+
+    /** Reset all counters */
+    void reset();
+}
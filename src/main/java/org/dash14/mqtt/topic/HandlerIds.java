@@ -0,0 +1,94 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Numbers of registered handlers, for finding a same handler without hashing.
+ *
+ * <p>
+ * Handlers equal to each other have the same number, and the number is reused after
+ * all of them are removed. The smallest unused number is given, so that numbers stay small.
+ * It is guarded by the lock of {@link TopicDispatcher}.
+ * </p>
+ */
+@NotThreadSafe
+/* package */ final class HandlerIds {
+
+    /** The number and the reference count by a handler */
+    private final Map<TopicHandler<?>, int[]> _ids = new HashMap<>();
+
+    private final BitSet _used = new BitSet();
+
+    /**
+     * @param handler A handler to be registered
+     * @return The number of the handler
+     */
+    /* package */ int acquire(TopicHandler<?> handler) {
+        int[] entry = _ids.get(handler);
+        if (entry == null) {
+            int id = _used.nextClearBit(0);
+            _used.set(id);
+            entry = new int[] { id, 0 };
+            _ids.put(handler, entry);
+        }
+        entry[1]++;
+        return entry[0];
+    }
+
+    /**
+     * @param handler A handler
+     * @return {@code true} if the handler or an equal one is registered
+     */
+    /* package */ boolean contains(TopicHandler<?> handler) {
+        return _ids.containsKey(handler);
+    }
+
+    /**
+     * @param handler A removed handler
+     */
+    /* package */ void release(TopicHandler<?> handler) {
+        int[] entry = _ids.get(handler);
+        if (entry != null && --entry[1] == 0) {
+            _ids.remove(handler);
+            _used.clear(entry[0]);
+        }
+    }
+
+    /**
+     * Marks of handlers seen in one message, used by one thread.
+     */
+    @NotThreadSafe
+    /* package */ static final class Stamps {
+        private int[] _stamps = new int[16];
+
+        private int _generation;
+
+        /** Forget all marks */
+        /* package */ void clear() {
+            if (++_generation == 0) {
+                Arrays.fill(_stamps, 0);
+                _generation = 1;
+            }
+        }
+
+        /**
+         * @param id Number of a handler
+         * @return {@code true} if not marked since {@link #clear()}
+         */
+        /* package */ boolean mark(int id) {
+            if (id >= _stamps.length) {
+                _stamps = Arrays.copyOf(_stamps, Math.max(id + 1, _stamps.length * 2));
+            }
+            if (_stamps[id] == _generation) {
+                return false;
+            }
+            _stamps[id] = _generation;
+            return true;
+        }
+    }
+}
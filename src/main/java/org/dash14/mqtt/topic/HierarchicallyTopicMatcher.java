@@ -1,104 +1,480 @@
 package org.dash14.mqtt.topic;
 
-import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
-import javax.annotation.concurrent.NotThreadSafe;
-
-import org.dash14.mqtt.topic.handler.TopicMatchHandler;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
 
 /**
  * A class that is responsible for matching one hierarchy.
  *
  * <p>
  * A topic filter is managed by different objects for each hierarchy delimited by '/'.
- * Since matching specifications will change depending on the presence of '/',
- * delimiters are kept at the beginning of each hierarchy.
+ * The root object represents the position before the first hierarchy, and each child
+ * represents the next hierarchy; a literal name, or the single-level wildcard ('+').
+ * Handlers are kept by the object of the last hierarchy of the topic filter,
+ * and handlers of a topic filter ending with the multi-level wildcard ('#') are kept
+ * by the object of the hierarchy just before '#'.
+ * </p>
+ * <pre>
+ * subscribe: abc/+/def  -&gt; (root) -&gt; abc -&gt; + -&gt; def : handlers
+ * subscribe: abc/#      -&gt; (root) -&gt; abc : multi-level handlers
+ * subscribe: /abc       -&gt; (root) -&gt; (empty) -&gt; abc : handlers
+ * </pre>
+ * <p>
+ * Objects are immutable. Adding or removing a handler creates copies of the objects
+ * along the path of the topic filter, and unchanged hierarchies are shared with the
+ * original tree.
+ * </p>
+ * <p>
+ * A chain of hierarchies which have only one child and no handlers (e.g. {@code org/site/building}
+ * of {@code org/site/building/+/telemetry}) is compressed into its first hierarchy, which keeps the names
+ * and the hierarchy at the end of the chain instead of children. The chain is matched by comparing
+ * the topic with the joined names at once. Hierarchies inside the chain are not kept, and
+ * {@link #getChildren()} creates them for changing or walking the tree. The chain is computed when
+ * a hierarchy is created, so it is split or merged again by adding or removing a handler.
+ * </p>
+ * <p>
+ * Most hierarchies have no handlers or one handler, so an empty list is shared and a list of one
+ * handler is a singleton list. Names of hierarchies are interned by {@link TopicFilters}.
+ * </p>
+ * <p>
+ * Matching walks a topic by positions of hierarchies, and does not create substrings nor
+ * other objects except elements added to the result collection.
  * </p>
  * @param <Data> Message object type passing to handlers
  */
-@NotThreadSafe
+@Immutable
 /* package */ class HierarchicallyTopicMatcher<Data> {
 
-    private Set<TopicMatchHandler<Data>> _matchers = new LinkedHashSet<>();
+    /** Subscriptions of topic-filters which end at this hierarchy */
+    private final List<TopicSubscription<Data>> _handlers;
 
-    private Map<String, HierarchicallyTopicMatcher<Data>> _children = new HashMap<>();
+    /** Subscriptions of topic-filters which have '#' as the next hierarchy */
+    private final List<TopicSubscription<Data>> _multiLevelHandlers;
 
-    /* package */
-    boolean matchHierarchically(String topic, String fullTopic, List<TopicHandler<Data>> matchedHandlers) {
-        boolean matched = false;
-
-        // Match current hierarchy
-        for (TopicMatchHandler<Data> matcher : _matchers) {
-            if (matcher.match(topic, fullTopic)) {
-                matched = true;
-                matchedHandlers.add(matcher.getTopicHandler());
+    /** Next hierarchies by the name; empty if this hierarchy is a chain */
+    private final TopicLevelMap<HierarchicallyTopicMatcher<Data>> _children;
+
+    /** Next hierarchy for '+' */
+    private final HierarchicallyTopicMatcher<Data> _singleLevelChild;
+
+    /** Names of a chain of hierarchies; {@code null} if this hierarchy is not a chain */
+    private final String[] _chainNames;
+
+    /** {@link #_chainNames} joined by '/'; {@code null} if this hierarchy is not a chain */
+    private final String _chainPath;
+
+    /** Hierarchy at the end of the chain */
+    private final HierarchicallyTopicMatcher<Data> _chainTarget;
+
+    /** Constructor for an empty tree */
+    /* package */ HierarchicallyTopicMatcher() {
+        this(new ArrayList<TopicSubscription<Data>>(0), new ArrayList<TopicSubscription<Data>>(0),
+                TopicLevelMap.<HierarchicallyTopicMatcher<Data>>empty(), null);
+    }
+
+    /* package */ HierarchicallyTopicMatcher(List<TopicSubscription<Data>> handlers,
+            List<TopicSubscription<Data>> multiLevelHandlers,
+            TopicLevelMap<HierarchicallyTopicMatcher<Data>> children,
+            @Nullable HierarchicallyTopicMatcher<Data> singleLevelChild) {
+        _handlers = compact(handlers);
+        _multiLevelHandlers = compact(multiLevelHandlers);
+        _singleLevelChild = singleLevelChild;
+
+        if (children.size() == 1 && singleLevelChild == null && _handlers.isEmpty() && _multiLevelHandlers.isEmpty()) {
+            int slot = 0;
+            while (children.keyAt(slot) == null) {
+                slot++;
+            }
+            String name = children.keyAt(slot);
+            HierarchicallyTopicMatcher<Data> child = children.valueAt(slot);
+            // the child is not kept if it is also a chain
+            if (child._chainPath != null) {
+                _chainNames = new String[child._chainNames.length + 1];
+                _chainNames[0] = name;
+                System.arraycopy(child._chainNames, 0, _chainNames, 1, child._chainNames.length);
+                _chainPath = name + '/' + child._chainPath;
+                _chainTarget = child._chainTarget;
+            } else {
+                _chainNames = new String[] { name };
+                _chainPath = name;
+                _chainTarget = child;
             }
+            _children = TopicLevelMap.empty();
+        } else {
+            _children = children;
+            _chainNames = null;
+            _chainPath = null;
+            _chainTarget = null;
+        }
+    }
+
+    /** Constructor for a chain without the first hierarchy of another chain */
+    private HierarchicallyTopicMatcher(String[] chainNames, String chainPath, HierarchicallyTopicMatcher<Data> target) {
+        _handlers = Collections.emptyList();
+        _multiLevelHandlers = Collections.emptyList();
+        _children = TopicLevelMap.empty();
+        _singleLevelChild = null;
+        _chainNames = chainNames;
+        _chainPath = chainPath;
+        _chainTarget = target;
+    }
+
+    /**
+     * Collect subscriptions matched with the topic.
+     * @param topic A topic
+     * @param start Start position of the next hierarchy in the topic,
+     *              or {@code topic.length() + 1} if all hierarchies are consumed
+     * @param matched A collection which matched subscriptions are added to
+     * @return {@code true} if matched least one subscription
+     */
+    /* package */
+    boolean matchHierarchically(CharSequence topic, int start,
+            Collection<? super TopicSubscription<Data>> matched) {
+        if (_chainPath != null) {
+            return matchChain(topic, start, matched);
         }
 
-        if ("".equals(topic)) {
-            return matched;
+        // '#' matches also the parent hierarchy ("abc/#" matches "abc")
+        boolean found = addAll(_multiLevelHandlers, matched);
+
+        int length = topic.length();
+        if (start > length) {
+            // Match current hierarchy
+            found |= addAll(_handlers, matched);
+            return found;
         }
 
         // Match next hierarchy
-        String nextLevelTopic;
-        int nextLevelPos;
-        if (topic.charAt(0) == '/') {
-            if ("/".equals(topic)) return matched;
-            nextLevelPos = topic.indexOf('/', 1);
+        int end = start;
+        while (end < length && topic.charAt(end) != '/') {
+            end++;
+        }
+
+        HierarchicallyTopicMatcher<Data> m = _children.get(topic, start, end);
+        if (m != null) {
+            found |= m.matchHierarchically(topic, end + 1, matched);
+        }
+        if (_singleLevelChild != null) {
+            found |= _singleLevelChild.matchHierarchically(topic, end + 1, matched);
+        }
+        return found;
+    }
+
+    /**
+     * Collect subscriptions of topic-filters which match at least one topic in common with the topic-filter.
+     * @param levels Hierarchies of a topic-filter
+     * @param index Index of the next hierarchy in {@code levels}
+     * @param result A collection which subscriptions are added to
+     */
+    /* package */ void collectOverlapping(String[] levels, int index,
+            Collection<? super TopicSubscription<Data>> result) {
+        TopicLevelMap<HierarchicallyTopicMatcher<Data>> children = getChildren();
+        // '#' of a registered topic-filter matches the rest of any topic
+        SharedSubscriptionGroup.addSubscriptions(_multiLevelHandlers, result);
+        if (index == levels.length) {
+            SharedSubscriptionGroup.addSubscriptions(_handlers, result);
+            return;
+        }
+
+        String level = levels[index];
+        if ("#".equals(level)) {
+            // matches this hierarchy and all descendants
+            SharedSubscriptionGroup.addSubscriptions(_handlers, result);
+            for (int slot = 0; slot < children.slots(); slot++) {
+                if (children.keyAt(slot) != null) {
+                    children.valueAt(slot).collectAll(result);
+                }
+            }
+            if (_singleLevelChild != null) {
+                _singleLevelChild.collectAll(result);
+            }
+            return;
+        }
+        if ("+".equals(level)) {
+            for (int slot = 0; slot < children.slots(); slot++) {
+                if (children.keyAt(slot) != null) {
+                    children.valueAt(slot).collectOverlapping(levels, index + 1, result);
+                }
+            }
         } else {
-            nextLevelPos = topic.indexOf('/');
+            HierarchicallyTopicMatcher<Data> child = children.get(level);
+            if (child != null) {
+                child.collectOverlapping(levels, index + 1, result);
+            }
+        }
+        if (_singleLevelChild != null) {
+            _singleLevelChild.collectOverlapping(levels, index + 1, result);
+        }
+    }
+
+    /**
+     * Collect subscriptions of topic-filters which match all topics matched with the topic-filter.
+     * @param levels Hierarchies of a topic-filter
+     * @param index Index of the next hierarchy in {@code levels}
+     * @param result A collection which subscriptions are added to
+     */
+    /* package */ void collectCovering(String[] levels, int index,
+            Collection<? super TopicSubscription<Data>> result) {
+        TopicLevelMap<HierarchicallyTopicMatcher<Data>> children = getChildren();
+        SharedSubscriptionGroup.addSubscriptions(_multiLevelHandlers, result);
+        if (index == levels.length) {
+            SharedSubscriptionGroup.addSubscriptions(_handlers, result);
+            return;
+        }
+
+        String level = levels[index];
+        if ("#".equals(level)) {
+            // only covered by '#'
+            return;
+        }
+        if (!"+".equals(level)) {
+            HierarchicallyTopicMatcher<Data> child = children.get(level);
+            if (child != null) {
+                child.collectCovering(levels, index + 1, result);
+            }
+        }
+        if (_singleLevelChild != null) {
+            _singleLevelChild.collectCovering(levels, index + 1, result);
         }
-        if (nextLevelPos < 0) {
-            nextLevelTopic = topic;
-            topic = "";
+    }
+
+    /**
+     * Collect subscriptions of topic-filters which match only topics matched with the topic-filter.
+     * @param levels Hierarchies of a topic-filter
+     * @param index Index of the next hierarchy in {@code levels}
+     * @param result A collection which subscriptions are added to
+     */
+    /* package */ void collectCovered(String[] levels, int index,
+            Collection<? super TopicSubscription<Data>> result) {
+        TopicLevelMap<HierarchicallyTopicMatcher<Data>> children = getChildren();
+        if (index == levels.length) {
+            SharedSubscriptionGroup.addSubscriptions(_handlers, result);
+            return;
+        }
+
+        String level = levels[index];
+        if ("#".equals(level)) {
+            // covers this hierarchy and all descendants
+            collectAll(result);
+            return;
+        }
+        if ("+".equals(level)) {
+            for (int slot = 0; slot < children.slots(); slot++) {
+                if (children.keyAt(slot) != null) {
+                    children.valueAt(slot).collectCovered(levels, index + 1, result);
+                }
+            }
+            if (_singleLevelChild != null) {
+                _singleLevelChild.collectCovered(levels, index + 1, result);
+            }
         } else {
-            nextLevelTopic = topic.substring(0, nextLevelPos);
-            topic = topic.substring(nextLevelPos);
+            HierarchicallyTopicMatcher<Data> child = children.get(level);
+            if (child != null) {
+                child.collectCovered(levels, index + 1, result);
+            }
         }
+    }
 
-        HierarchicallyTopicMatcher<Data> m = _children.get(nextLevelTopic);
-        if (m != null) {
-            matched |= m.matchHierarchically(topic, fullTopic, matchedHandlers);
+    /**
+     * Collect all subscriptions of this hierarchy and descendants.
+     * @param result A collection which subscriptions are added to
+     */
+    /* package */ void collectAll(Collection<? super TopicSubscription<Data>> result) {
+        TopicLevelMap<HierarchicallyTopicMatcher<Data>> children = getChildren();
+        SharedSubscriptionGroup.addSubscriptions(_handlers, result);
+        SharedSubscriptionGroup.addSubscriptions(_multiLevelHandlers, result);
+        for (int slot = 0; slot < children.slots(); slot++) {
+            if (children.keyAt(slot) != null) {
+                children.valueAt(slot).collectAll(result);
+            }
+        }
+        if (_singleLevelChild != null) {
+            _singleLevelChild.collectAll(result);
         }
-        return matched;
     }
 
-    /* package */
-    HierarchicallyTopicMatcher<Data> findOrCreateChild(String partialTopic) {
-        HierarchicallyTopicMatcher<Data> matcher = _children.get(partialTopic);
-        if (matcher == null) {
-            matcher = new HierarchicallyTopicMatcher<>();
-            _children.put(partialTopic, matcher);
+    private boolean matchChain(CharSequence topic, int start, Collection<? super TopicSubscription<Data>> matched) {
+        // no handlers in the chain
+        int end = start + _chainPath.length();
+        int length = topic.length();
+        if (end > length || (end < length && topic.charAt(end) != '/')
+                || !TopicLevelMap.regionEquals(_chainPath, topic, start)) {
+            return false;
         }
-        return matcher;
+        return _chainTarget.matchHierarchically(topic, end + 1, matched);
     }
 
-    /* package */
-    void appendHandler(TopicMatchHandler<Data> handler) {
-        _matchers.add(handler);
+    /** @return Subscriptions of topic-filters which end at this hierarchy */
+    /* package */ List<TopicSubscription<Data>> getHandlers() {
+        return _handlers;
+    }
+
+    /** @return Subscriptions of topic-filters which have '#' as the next hierarchy */
+    /* package */ List<TopicSubscription<Data>> getMultiLevelHandlers() {
+        return _multiLevelHandlers;
+    }
+
+    /**
+     * @return Next hierarchies by the name; for a chain, the next hierarchy of the chain is created
+     */
+    /* package */ TopicLevelMap<HierarchicallyTopicMatcher<Data>> getChildren() {
+        if (_chainPath == null) {
+            return _children;
+        }
+        int length = _chainNames.length;
+        HierarchicallyTopicMatcher<Data> next = (length == 1) ? _chainTarget
+                : new HierarchicallyTopicMatcher<>(Arrays.copyOfRange(_chainNames, 1, length),
+                        _chainPath.substring(_chainNames[0].length() + 1), _chainTarget);
+        return TopicLevelMap.<HierarchicallyTopicMatcher<Data>>empty().with(_chainNames[0], next);
     }
 
+    /** @return Next hierarchy for '+' */
+    /* package */ @Nullable
+    HierarchicallyTopicMatcher<Data> getSingleLevelChild() {
+        return _singleLevelChild;
+    }
+
+    /**
+     * Create a tree which the subscription is added to.
+     * @param levels Hierarchies of a topic filter
+     * @param index Index of the next hierarchy in {@code levels}
+     * @param subscription A subscription
+     * @return A new tree
+     */
     /* package */
-    boolean subtract(HierarchicallyTopicMatcher<Data> matchers) {
-        boolean changed = false;
-
-        changed = _matchers.removeAll(matchers._matchers);
-
-        for (String partialTopic : matchers._children.keySet()) {
-            HierarchicallyTopicMatcher<Data> org = _children.get(partialTopic);
-            if (org != null) {
-                HierarchicallyTopicMatcher<Data> htm = matchers._children.get(partialTopic);
-                changed |= org.subtract(htm);
-                if (org._matchers.isEmpty() && org._children.isEmpty()) {
-                    _children.remove(partialTopic);
-                }
+    HierarchicallyTopicMatcher<Data> withHandler(String[] levels, int index, TopicSubscription<Data> subscription) {
+        if (index == levels.length) {
+            List<TopicSubscription<Data>> handlers = new ArrayList<>(_handlers);
+            SharedSubscriptionGroup.add(handlers, subscription);
+            return new HierarchicallyTopicMatcher<>(handlers, _multiLevelHandlers, getChildren(), _singleLevelChild);
+        }
+
+        String level = levels[index];
+        if ("#".equals(level)) {
+            List<TopicSubscription<Data>> handlers = new ArrayList<>(_multiLevelHandlers);
+            SharedSubscriptionGroup.add(handlers, subscription);
+            return new HierarchicallyTopicMatcher<>(_handlers, handlers, getChildren(), _singleLevelChild);
+        }
+
+        HierarchicallyTopicMatcher<Data> child = getChild(level);
+        if (child == null) {
+            child = new HierarchicallyTopicMatcher<>();
+        }
+        return withChild(level, child.withHandler(levels, index + 1, subscription));
+    }
+
+    /**
+     * Create a tree which the handler is removed from.
+     * @param levels Hierarchies of a topic filter
+     * @param index Index of the next hierarchy in {@code levels}
+     * @param subscription A subscription to be removed
+     * @param sameInstance {@code true} to remove the same instance of the subscription,
+     *                     {@code false} to remove the first subscription of the same handler
+     * @return {@code this} if the handler is not found, {@code null} if the tree becomes empty,
+     *         or a new tree
+     */
+    /* package */ @Nullable
+    HierarchicallyTopicMatcher<Data> withoutHandler(String[] levels, int index,
+            TopicSubscription<Data> subscription, boolean sameInstance) {
+        HierarchicallyTopicMatcher<Data> matcher;
+        if (index == levels.length || "#".equals(levels[index])) {
+            boolean multiLevel = (index < levels.length);
+            List<TopicSubscription<Data>> handlers = new ArrayList<>(multiLevel ? _multiLevelHandlers : _handlers);
+            int i = SharedSubscriptionGroup.indexOf(handlers, subscription, sameInstance);
+            if (i < 0) {
+                return this;
+            }
+            SharedSubscriptionGroup.remove(handlers, i, subscription, sameInstance);
+            matcher = multiLevel
+                    ? new HierarchicallyTopicMatcher<>(_handlers, handlers, getChildren(), _singleLevelChild)
+                    : new HierarchicallyTopicMatcher<>(handlers, _multiLevelHandlers, getChildren(), _singleLevelChild);
+        } else {
+            String level = levels[index];
+            HierarchicallyTopicMatcher<Data> child = getChild(level);
+            if (child == null) {
+                return this;
+            }
+            HierarchicallyTopicMatcher<Data> newChild
+                    = child.withoutHandler(levels, index + 1, subscription, sameInstance);
+            if (newChild == child) {
+                return this;
+            }
+            matcher = withChild(level, newChild);
+        }
+        return matcher.isEmpty() ? null : matcher;
+    }
+
+    /**
+     * @param handlers A list which is not modified after that
+     * @return A list which has the same elements with less memory
+     */
+    private static <T> List<T> compact(List<T> handlers) {
+        if (!(handlers instanceof ArrayList)) {
+            // already compacted
+            return handlers;
+        }
+        switch (handlers.size()) {
+        case 0:
+            return Collections.emptyList();
+        case 1:
+            return Collections.singletonList(handlers.get(0));
+        default:
+            ((ArrayList<T>) handlers).trimToSize();
+            return handlers;
+        }
+    }
+
+    /**
+     * Add objects of this hierarchy and descendants to a report.
+     * @param report A report
+     */
+    /* package */ void report(MemoryReport.Builder report) {
+        report.addNode(_handlers, _multiLevelHandlers, _children, _chainNames, _chainPath);
+        if (_chainTarget != null) {
+            // hierarchies inside the chain are not kept
+            _chainTarget.report(report);
+        }
+        for (int slot = 0; slot < _children.slots(); slot++) {
+            if (_children.keyAt(slot) != null) {
+                _children.valueAt(slot).report(report);
             }
         }
+        if (_singleLevelChild != null) {
+            _singleLevelChild.report(report);
+        }
+    }
+
+    private static <Data> boolean addAll(List<TopicSubscription<Data>> handlers,
+            Collection<? super TopicSubscription<Data>> matched) {
+        // not use Collection#addAll() to avoid copying to an array
+        int size = handlers.size();
+        for (int i = 0; i < size; i++) {
+            matched.add(handlers.get(i));
+        }
+        return size > 0;
+    }
+
+    private HierarchicallyTopicMatcher<Data> getChild(String level) {
+        return "+".equals(level) ? _singleLevelChild : getChildren().get(level);
+    }
+
+    private HierarchicallyTopicMatcher<Data> withChild(String level, @Nullable HierarchicallyTopicMatcher<Data> child) {
+        if ("+".equals(level)) {
+            return new HierarchicallyTopicMatcher<>(_handlers, _multiLevelHandlers, getChildren(), child);
+        }
+        TopicLevelMap<HierarchicallyTopicMatcher<Data>> children
+                = (child == null) ? getChildren().without(level) : getChildren().with(level, child);
+        return new HierarchicallyTopicMatcher<>(_handlers, _multiLevelHandlers, children, _singleLevelChild);
+    }
 
-        return changed;
+    private boolean isEmpty() {
+        return _handlers.isEmpty() && _multiLevelHandlers.isEmpty()
+                && _children.isEmpty() && _chainPath == null && _singleLevelChild == null;
     }
 }
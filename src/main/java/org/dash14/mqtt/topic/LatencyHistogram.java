@@ -0,0 +1,108 @@
+package org.dash14.mqtt.topic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A histogram of latencies in nanoseconds.
+ *
+ * <p>
+ * Latencies are counted in buckets by powers of two, so a percentile is
+ * an upper bound within a factor of two. Recording does not take any lock; counts are
+ * {@link StripedCounters}, and the maximum is written only when it increases.
+ * </p>
+ */
+@ThreadSafe
+public final class LatencyHistogram {
+
+    /** Bucket {@code i} counts latencies in {@code [2^(i-1), 2^i)}; bucket 0 counts zero */
+    private static final int BUCKETS = 64;
+
+    /** Index of the sum of latencies in {@link #_counts} */
+    private static final int TOTAL = BUCKETS;
+
+    /** Counts of buckets, and the sum of latencies */
+    private final StripedCounters _counts = new StripedCounters(BUCKETS + 1);
+
+    private final AtomicLong _maxNanos = new AtomicLong();
+
+    /* package */ LatencyHistogram() {
+    }
+
+    /* package */ void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        _counts.add(BUCKETS - Long.numberOfLeadingZeros(nanos), 1L);
+        _counts.add(TOTAL, nanos);
+        // read only, unless the maximum increases
+        long max;
+        while (nanos > (max = _maxNanos.get())) {
+            if (_maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /** @return Number of recorded latencies */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += _counts.get(i);
+        }
+        return count;
+    }
+
+    /** @return Sum of recorded latencies in nanoseconds */
+    public long getTotalNanos() {
+        return _counts.get(TOTAL);
+    }
+
+    /** @return Maximum of recorded latencies in nanoseconds */
+    public long getMaxNanos() {
+        return _maxNanos.get();
+    }
+
+    /** @return Average of recorded latencies in nanoseconds, or {@code 0} if nothing is recorded */
+    public long getMeanNanos() {
+        long count = getCount();
+        return (count > 0) ? getTotalNanos() / count : 0L;
+    }
+
+    /**
+     * @param percentile A percentile in {@code (0, 100]}
+     * @return Upper bound of the latencies in nanoseconds at the percentile,
+     *         or {@code 0} if nothing is recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        if (!(percentile > 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("percentile must be in (0, 100]: " + percentile);
+        }
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = _counts.get(i);
+            count += counts[i];
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return Math.min((i == 0) ? 0L : (1L << i) - 1, getMaxNanos());
+            }
+        }
+        return 0L;
+    }
+
+    /* package */ void reset() {
+        _counts.reset();
+        _maxNanos.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMeanNanos() + "ns, max=" + getMaxNanos() + "ns";
+    }
+}
@@ -0,0 +1,16 @@
+package org.dash14.mqtt.topic;
+
+import java.util.List;
+
+/**
+ * Handler which receives topic-filters matched with a message.
+ * <p>
+ * While {@link TopicDispatcher#enableHandlerDeduplication()} is enabled,
+ * {@link TopicDispatcher#dispatch(String, Object)} calls {@link #handleTopic(String, Object, List)}
+ * once for a message instead of {@link #handleTopic(String, Object)}.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+public interface MatchedFiltersTopicHandler<Data> extends TopicHandler<Data> {
+    void handleTopic(String topic, Data data, List<String> topicFilters);
+}
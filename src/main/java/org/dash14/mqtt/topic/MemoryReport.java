@@ -0,0 +1,232 @@
+package org.dash14.mqtt.topic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Estimated heap usage of handlers registered to {@link TopicDispatcher}.
+ *
+ * <p>
+ * Sizes are estimated for a 64-bit JVM with compressed references;
+ * a header of 12 bytes, 4 bytes for a reference, objects aligned to 8 bytes, and 2 bytes for a char of strings
+ * as Java 7 and 8 store them, which overestimates strings of Latin-1 on Java 9 or later.
+ * Handler objects themselves are not included.
+ * </p>
+ * @see TopicDispatcher#getMemoryReport()
+ */
+@Immutable
+public final class MemoryReport {
+
+    private final boolean _compiled;
+
+    private final int _nodeCount;
+
+    private final int _subscriptionCount;
+
+    private final int _levelNameCount;
+
+    private final int _distinctLevelNameCount;
+
+    private final long _structureBytes;
+
+    private final long _subscriptionBytes;
+
+    private MemoryReport(boolean compiled, int nodeCount, int subscriptionCount,
+            int levelNameCount, int distinctLevelNameCount, long structureBytes, long subscriptionBytes) {
+        _compiled = compiled;
+        _nodeCount = nodeCount;
+        _subscriptionCount = subscriptionCount;
+        _levelNameCount = levelNameCount;
+        _distinctLevelNameCount = distinctLevelNameCount;
+        _structureBytes = structureBytes;
+        _subscriptionBytes = subscriptionBytes;
+    }
+
+    /** @return {@code true} if estimated for the form packed by {@link TopicDispatcher#compile()} */
+    public boolean isCompiled() {
+        return _compiled;
+    }
+
+    /** @return Number of hierarchies kept by the tree; hierarchies inside a chain of single children are not kept */
+    public int getNodeCount() {
+        return _nodeCount;
+    }
+
+    /** @return Number of registered subscriptions */
+    public int getSubscriptionCount() {
+        return _subscriptionCount;
+    }
+
+    /** @return Number of string objects of hierarchy names */
+    public int getLevelNameCount() {
+        return _levelNameCount;
+    }
+
+    /**
+     * @return Number of distinct hierarchy names; same as {@link #getLevelNameCount()}
+     *         if all names are interned
+     */
+    public int getDistinctLevelNameCount() {
+        return _distinctLevelNameCount;
+    }
+
+    /** @return Estimated bytes of hierarchies, lists and maps of the tree */
+    public long getStructureBytes() {
+        return _structureBytes;
+    }
+
+    /** @return Estimated bytes of subscriptions, topic-filters and hierarchy names */
+    public long getSubscriptionBytes() {
+        return _subscriptionBytes;
+    }
+
+    /** @return Estimated bytes in total */
+    public long getEstimatedBytes() {
+        return _structureBytes + _subscriptionBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "nodes=" + _nodeCount + ", subscriptions=" + _subscriptionCount
+                + ", levelNames=" + _levelNameCount + " (" + _distinctLevelNameCount + " distinct)"
+                + ", structure=" + _structureBytes + "B, subscriptions=" + _subscriptionBytes + "B"
+                + (_compiled ? ", compiled" : "");
+    }
+
+    /** @return Estimated bytes of an object which has the fields */
+    /* package */ static long objectBytes(int references, int ints) {
+        return align(12L + 4L * references + 4L * ints);
+    }
+
+    /** @return Estimated bytes of an array */
+    /* package */ static long arrayBytes(int length, int elementBytes) {
+        return align(16L + (long) length * elementBytes);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * A builder which is given all hierarchies of a tree.
+     */
+    @NotThreadSafe
+    /* package */ static final class Builder {
+        private int _nodeCount;
+
+        private int _subscriptionCount;
+
+        private long _structureBytes;
+
+        private long _subscriptionBytes;
+
+        /** Strings already counted */
+        private final Set<String> _strings = Sets.newIdentityHashSet();
+
+        private final Set<String> _levelNames = Sets.newIdentityHashSet();
+
+        private final Set<String> _distinctLevelNames = new HashSet<>();
+
+        /* package */ <Data> void addNode(List<TopicSubscription<Data>> handlers,
+                List<TopicSubscription<Data>> multiLevelHandlers,
+                TopicLevelMap<HierarchicallyTopicMatcher<Data>> children,
+                @Nullable String[] chainNames, @Nullable String chainPath) {
+            _nodeCount++;
+            _structureBytes += objectBytes(7, 0) + listBytes(handlers) + listBytes(multiLevelHandlers)
+                    + children.estimateBytes();
+            if (chainNames != null) {
+                _structureBytes += arrayBytes(chainNames.length, 4) + stringBytes(chainPath);
+                for (String name : chainNames) {
+                    addLevelName(name);
+                }
+            }
+            for (int slot = 0; slot < children.slots(); slot++) {
+                String name = children.keyAt(slot);
+                if (name != null) {
+                    addLevelName(name);
+                }
+            }
+            for (TopicSubscription<Data> subscription : handlers) {
+                addEntry(subscription);
+            }
+            for (TopicSubscription<Data> subscription : multiLevelHandlers) {
+                addEntry(subscription);
+            }
+        }
+
+        /**
+         * Replace bytes of the structure with the compiled form.
+         * @param bytes Estimated bytes of the compiled form
+         */
+        /* package */ void setCompiledStructureBytes(long bytes) {
+            _structureBytes = bytes;
+        }
+
+        /* package */ MemoryReport build(boolean compiled) {
+            return new MemoryReport(compiled, _nodeCount, _subscriptionCount,
+                    _levelNames.size(), _distinctLevelNames.size(), _structureBytes, _subscriptionBytes);
+        }
+
+        private <Data> void addEntry(TopicSubscription<Data> entry) {
+            if (!(entry.getHandler() instanceof SharedSubscriptionGroup)) {
+                addSubscription(entry);
+                return;
+            }
+            List<TopicSubscription<Data>> members = new ArrayList<>();
+            SharedSubscriptionGroup.addSubscriptions(Collections.singletonList(entry), members);
+            // the entry, the group, an array of members, and a member and its counter for each
+            _subscriptionBytes += objectBytes(5, 2) + objectBytes(4, 0) + arrayBytes(members.size(), 4)
+                    + (objectBytes(2, 0) + objectBytes(0, 1)) * members.size();
+            for (TopicSubscription<Data> member : members) {
+                addSubscription(member);
+            }
+        }
+
+        private <Data> void addSubscription(TopicSubscription<Data> subscription) {
+            _subscriptionCount++;
+            String[] levels = subscription.getLevels();
+            _subscriptionBytes += objectBytes(5, 2) + arrayBytes(levels.length, 4);
+            addString(subscription.getTopicFilter());
+            for (String level : levels) {
+                addLevelName(level);
+            }
+        }
+
+        private void addLevelName(String name) {
+            _levelNames.add(name);
+            _distinctLevelNames.add(name);
+            addString(name);
+        }
+
+        private void addString(String string) {
+            if (_strings.add(string)) {
+                _subscriptionBytes += stringBytes(string);
+            }
+        }
+
+        private static long stringBytes(String string) {
+            // value, hash and hash32 of Java 7
+            return objectBytes(1, 2) + arrayBytes(string.length(), 2);
+        }
+
+        private static long listBytes(List<?> list) {
+            if (list.isEmpty()) {
+                // shared
+                return 0L;
+            }
+            if (list.size() == 1) {
+                return objectBytes(1, 0);
+            }
+            return objectBytes(1, 2) + arrayBytes(list.size(), 4);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.dash14.mqtt.topic;
+
+/**
+ * Handler which receives hierarchies of a topic matched with wildcards of the topic-filter.
+ * <p>
+ * {@link TopicDispatcher} calls {@link #handleTopic(String, Object, TopicParameters)}
+ * instead of {@link #handleTopic(String, Object)}, so that the handler doesn't split the topic again;
+ * e.g. {@code parameters.get(0)} is {@code "device1"} for a topic {@code "devices/device1/status"}
+ * matched with {@code "devices/+/status"}.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+public interface ParameterizedTopicHandler<Data> extends TopicHandler<Data> {
+    void handleTopic(String topic, Data data, TopicParameters parameters);
+}
@@ -0,0 +1,97 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Ordering of subscriptions by priorities.
+ *
+ * <p>
+ * Subscriptions of each hierarchy are kept in descending order of priorities when added,
+ * so matched subscriptions are a sequence of sorted runs, one or more for each matched hierarchy.
+ * They are ordered by merging the runs, without sorting for each message.
+ * If all priorities are the same, matched subscriptions are one run and left as they are.
+ * </p>
+ */
+/* package */ final class PriorityOrder {
+
+    private PriorityOrder() {
+    }
+
+    /**
+     * @param handlers Subscriptions in descending order of priorities
+     * @param priority A priority to be inserted
+     * @return Index after subscriptions of the same or higher priorities
+     */
+    /* package */ static <Data> int insertionIndex(List<TopicSubscription<Data>> handlers, int priority) {
+        int index = handlers.size();
+        while (index > 0 && handlers.get(index - 1).getPriority() < priority) {
+            index--;
+        }
+        return index;
+    }
+
+    /**
+     * Order subscriptions in descending order of priorities; ones of the same priority keep the order.
+     * @param matched Matched subscriptions
+     * @param from Start index of subscriptions to be ordered
+     */
+    /* package */ static <Data> void merge(List<TopicSubscription<Data>> matched, int from) {
+        int size = matched.size();
+        if (size - from < 2) {
+            return;
+        }
+        int next = nextRun(matched, from, size);
+        if (next == size) {
+            return;
+        }
+
+        // start positions of the runs, and the end at the last
+        int[] runs = new int[] { from, next, 0, 0 };
+        int runCount = 2;
+        while (next < size) {
+            next = nextRun(matched, next, size);
+            if (runCount == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[runCount++] = next;
+        }
+        runCount--;
+
+        // k-way merge; the earlier run is taken first for the same priority
+        Object[] copy = matched.subList(from, size).toArray();
+        int[] heads = new int[runCount];
+        for (int r = 0; r < runCount; r++) {
+            heads[r] = runs[r] - from;
+        }
+        for (int i = from; i < size; i++) {
+            int selected = -1;
+            int priority = 0;
+            for (int r = 0; r < runCount; r++) {
+                if (heads[r] < runs[r + 1] - from) {
+                    int p = priority(copy[heads[r]]);
+                    if (selected < 0 || p > priority) {
+                        selected = r;
+                        priority = p;
+                    }
+                }
+            }
+            @SuppressWarnings("unchecked")
+            TopicSubscription<Data> subscription = (TopicSubscription<Data>) copy[heads[selected]++];
+            matched.set(i, subscription);
+        }
+    }
+
+    /** @return End of the run starting at the index */
+    private static <Data> int nextRun(List<TopicSubscription<Data>> matched, int start, int size) {
+        int i = start + 1;
+        while (i < size && matched.get(i - 1).getPriority() >= matched.get(i).getPriority()) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int priority(Object subscription) {
+        return ((TopicSubscription<?>) subscription).getPriority();
+    }
+}
@@ -0,0 +1,268 @@
+package org.dash14.mqtt.topic;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * The last message of each dispatched topic, indexed by a tree of hierarchies of topics.
+ *
+ * <p>
+ * Messages are kept by a bounded cache, which evicts least recently updated topics.
+ * The tree has only topics, and is used to find topics matched with a topic-filter
+ * without comparing all topics. A topic is added to the tree when it is put to the cache
+ * for the first time, and removed with empty hierarchies when it is evicted.
+ * Updating a message of a topic in the cache does not touch the tree.
+ * </p>
+ * <p>
+ * Hierarchies are locked only for adding or removing a topic; a parent before a child.
+ * A removed hierarchy is marked, so that a topic being added to it is added again from the root.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+@ThreadSafe
+/* package */ final class RetainedMessageStore<Data> {
+
+    private final Cache<String, Message<Data>> _messages;
+
+    private final Node _root = new Node(null, null);
+
+    /* package */ RetainedMessageStore(long maximumTopics) {
+        _messages = CacheBuilder.newBuilder()
+                .maximumSize(maximumTopics)
+                .removalListener(new RemovalListener<String, Message<Data>>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Message<Data>> notification) {
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            removeTopic(notification.getKey());
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /** @return Number of retained topics */
+    /* package */ long size() {
+        return _messages.size();
+    }
+
+    /**
+     * Keep a message as the last one of the topic.
+     * @param topic A non-empty topic
+     * @param data A message data
+     */
+    /* package */ void put(String topic, @Nullable Data data) {
+        if (_messages.asMap().put(topic, new Message<>(data)) == null) {
+            addTopic(topic);
+        }
+    }
+
+    /**
+     * @param levels Hierarchies of a topic-filter
+     * @return Retained messages of topics matched with the topic-filter
+     */
+    /* package */ Map<String, Data> get(String[] levels) {
+        Map<String, Data> messages = new LinkedHashMap<>();
+        for (String topic : getTopics(levels)) {
+            Message<Data> message = _messages.getIfPresent(topic);
+            if (message != null) {
+                messages.put(topic, message.data);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @param levels Hierarchies of a topic-filter
+     * @return Retained topics matched with the topic-filter
+     */
+    /* package */ List<String> getTopics(String[] levels) {
+        List<String> topics = new ArrayList<>();
+        collect(_root, levels, 0, topics);
+        return topics;
+    }
+
+    /**
+     * @param topic A topic
+     * @return The retained message of the topic, or {@code null} if not retained;
+     *         a different instance after the topic is dispatched again
+     */
+    /* package */ @Nullable
+    Message<Data> getMessage(String topic) {
+        return _messages.getIfPresent(topic);
+    }
+
+    private void addTopic(String topic) {
+        while (true) {
+            Node node = _root;
+            int start = 0;
+            while (node != null && start <= topic.length()) {
+                int end = topic.indexOf('/', start);
+                if (end < 0) {
+                    end = topic.length();
+                }
+                node = node.child(topic.substring(start, end));
+                start = end + 1;
+            }
+            if (node != null && node.setTopic(topic)) {
+                if (!_messages.asMap().containsKey(topic)) {
+                    // evicted before being added to the tree
+                    removeTopic(topic);
+                }
+                return;
+            }
+            // a hierarchy on the way is removed; add again
+        }
+    }
+
+    private void removeTopic(String topic) {
+        Node node = _root;
+        int start = 0;
+        while (node != null && start <= topic.length()) {
+            int end = topic.indexOf('/', start);
+            if (end < 0) {
+                end = topic.length();
+            }
+            node = node.children.get(topic.substring(start, end));
+            start = end + 1;
+        }
+        if (node == null) {
+            return;
+        }
+        synchronized (node.parent) {
+            synchronized (node) {
+                // may be put again after evicted
+                if (node.removed || !topic.equals(node.topic) || _messages.asMap().containsKey(topic)) {
+                    return;
+                }
+                node.topic = null;
+            }
+        }
+        while (node.parent != null && node.parent.removeIfEmpty(node)) {
+            node = node.parent;
+        }
+    }
+
+    private static void collect(Node node, String[] levels, int index, List<String> topics) {
+        if (index == levels.length) {
+            addTopic(node, topics);
+            return;
+        }
+        String level = levels[index];
+        if ("#".equals(level)) {
+            // '#' matches also the parent hierarchy
+            addAll(node, topics);
+        } else if ("+".equals(level)) {
+            for (Node child : node.children.values()) {
+                collect(child, levels, index + 1, topics);
+            }
+        } else {
+            Node child = node.children.get(level);
+            if (child != null) {
+                collect(child, levels, index + 1, topics);
+            }
+        }
+    }
+
+    private static void addAll(Node node, List<String> topics) {
+        addTopic(node, topics);
+        for (Node child : node.children.values()) {
+            addAll(child, topics);
+        }
+    }
+
+    private static void addTopic(Node node, List<String> topics) {
+        String topic = node.topic;
+        if (topic != null) {
+            topics.add(topic);
+        }
+    }
+
+    /**
+     * A hierarchy of topics.
+     */
+    private static final class Node {
+        final Node parent;
+
+        final String name;
+
+        final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+
+        /** The topic if retained; guarded by this for writing */
+        volatile String topic;
+
+        /** {@code true} if removed from the parent; guarded by this */
+        boolean removed;
+
+        Node(@Nullable Node parent, @Nullable String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        /** @return A child, added if not exists; {@code null} if this is removed */
+        @Nullable
+        Node child(String childName) {
+            Node child = children.get(childName);
+            if (child != null) {
+                return child;
+            }
+            synchronized (this) {
+                if (removed) {
+                    return null;
+                }
+                child = children.get(childName);
+                if (child == null) {
+                    child = new Node(this, childName);
+                    children.put(childName, child);
+                }
+                return child;
+            }
+        }
+
+        /** @return {@code false} if this is removed */
+        synchronized boolean setTopic(String topic) {
+            if (removed) {
+                return false;
+            }
+            this.topic = topic;
+            return true;
+        }
+
+        /** @return {@code true} if the child is removed */
+        boolean removeIfEmpty(Node child) {
+            synchronized (this) {
+                synchronized (child) {
+                    if (child.removed || child.topic != null || !child.children.isEmpty()) {
+                        return false;
+                    }
+                    child.removed = true;
+                    children.remove(child.name, child);
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * A message data, which can be {@code null}.
+     */
+    /* package */ static final class Message<Data> {
+        final Data data;
+
+        Message(@Nullable Data data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An executor which runs tasks one by one in the submitted order on another executor.
+ *
+ * <p>
+ * Only one task of this executor runs at a time, and it occupies at most one thread
+ * of the underlying executor. After running some tasks the thread is released,
+ * so that other serial executors sharing the underlying executor can proceed.
+ * If the underlying executor rejects running the rest of tasks, they are discarded, and
+ * a {@link Task} is notified of it.
+ * </p>
+ */
+@ThreadSafe
+/* package */ final class SerialExecutor implements Executor {
+
+    /** Maximum number of tasks run at once before releasing the thread */
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    private final Executor _executor;
+
+    private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<>();
+
+    /** {@code true} while the tasks are scheduled or running */
+    private final AtomicBoolean _running = new AtomicBoolean();
+
+    private final Runnable _runner = new Runnable() {
+        @Override
+        public void run() {
+            runTasks();
+        }
+    };
+
+    /* package */ SerialExecutor(Executor executor) {
+        _executor = executor;
+    }
+
+    /**
+     * A task which is notified if it is discarded.
+     */
+    /* package */ interface Task extends Runnable {
+        /**
+         * Called instead of running, if the underlying executor rejects running queued tasks.
+         * @param cause An exception thrown from the underlying executor
+         */
+        void discard(RuntimeException cause);
+    }
+
+    /**
+     * Run the task after the tasks submitted before.
+     * The task must not throw any exceptions.
+     * @throws RejectedExecutionException if the underlying executor rejects
+     */
+    @Override
+    public void execute(Runnable task) {
+        _tasks.add(task);
+        try {
+            schedule();
+        } catch (RejectedExecutionException e) {
+            _tasks.remove(task);
+            throw e;
+        }
+    }
+
+    private void schedule() {
+        if (!_tasks.isEmpty() && _running.compareAndSet(false, true)) {
+            try {
+                _executor.execute(_runner);
+            } catch (RuntimeException e) {
+                _running.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void runTasks() {
+        try {
+            Runnable task;
+            for (int i = 0; i < MAX_TASKS_PER_RUN && (task = _tasks.poll()) != null; i++) {
+                task.run();
+            }
+        } finally {
+            _running.set(false);
+            // tasks submitted after the last poll, or remained tasks
+            try {
+                schedule();
+            } catch (RuntimeException e) {
+                // not thrown to the thread of the underlying executor
+                discardTasks(e);
+            }
+        }
+    }
+
+    private void discardTasks(RuntimeException cause) {
+        Runnable task;
+        while ((task = _tasks.poll()) != null) {
+            if (task instanceof Task) {
+                ((Task) task).discard(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A dispatcher which partitions messages to worker threads by the hash of the topic.
+ *
+ * <p>
+ * Each worker has its own bounded queue, and matches and calls handlers of
+ * the {@link TopicDispatcher} one message at a time. Messages of a same topic (or a same
+ * topic level specified as the shard key) are handled by a same worker in the dispatched order,
+ * while different topics are handled in parallel. Handlers are registered to the
+ * {@link TopicDispatcher}, and changes are visible to the workers without locking.
+ * </p>
+ * <p>
+ * When a queue is full, a message is handled according to {@link OverflowPolicy}.
+ * An exception thrown from a handler is passed to the uncaught exception handler of
+ * the worker thread, and the worker continues with the next message.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+@ThreadSafe
+public class ShardedTopicDispatcher<Data> {
+
+    /** Handling of a message when the queue of the worker is full */
+    public enum OverflowPolicy {
+        /** Wait until the queue has a space; the message is not queued if shut down while waiting */
+        BLOCK,
+        /** Discard the message */
+        DROP,
+        /** Handle the message on the caller's thread; it may be handled before preceding messages */
+        CALLER_RUNS
+    }
+
+    /** Shard key to use the whole topic */
+    public static final int WHOLE_TOPIC = -1;
+
+    /** Interval to check shutdown while waiting for a space of a queue */
+    private static final long BLOCK_CHECK_MILLIS = 100;
+
+    private final TopicDispatcher<Data> _dispatcher;
+
+    private final Shard<Data>[] _shards;
+
+    private final OverflowPolicy _overflowPolicy;
+
+    /** Index of the topic level used as the shard key, or {@link #WHOLE_TOPIC} */
+    private final int _shardLevel;
+
+    private final AtomicLong _droppedCount = new AtomicLong();
+
+    private volatile boolean _shutdown;
+
+    /**
+     * Constructor; partitions by the whole topic.
+     * @param dispatcher A dispatcher which has handlers
+     * @param shards Number of worker threads
+     * @param queueCapacity Capacity of the queue of each worker
+     * @param overflowPolicy Handling of a message when a queue is full
+     */
+    public ShardedTopicDispatcher(@Nonnull TopicDispatcher<Data> dispatcher, int shards, int queueCapacity,
+            @Nonnull OverflowPolicy overflowPolicy) {
+        this(dispatcher, shards, queueCapacity, overflowPolicy, WHOLE_TOPIC);
+    }
+
+    /**
+     * Constructor.
+     * @param dispatcher A dispatcher which has handlers
+     * @param shards Number of worker threads
+     * @param queueCapacity Capacity of the queue of each worker
+     * @param overflowPolicy Handling of a message when a queue is full
+     * @param shardLevel Index of the topic level used as the shard key (e.g. {@code 1} for
+     *                   the device ID of {@code devices/{id}/...}), or {@link #WHOLE_TOPIC};
+     *                   the whole topic is used if a topic does not have the level
+     */
+    public ShardedTopicDispatcher(@Nonnull TopicDispatcher<Data> dispatcher, int shards, int queueCapacity,
+            @Nonnull OverflowPolicy overflowPolicy, int shardLevel) {
+        _dispatcher = Objects.requireNonNull(dispatcher);
+        _overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        if (shardLevel < WHOLE_TOPIC) {
+            throw new IllegalArgumentException("invalid shardLevel: " + shardLevel);
+        }
+        _shardLevel = shardLevel;
+
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("topic-dispatcher-shard-%d")
+                .setDaemon(true)
+                .build();
+        @SuppressWarnings("unchecked")
+        Shard<Data>[] array = new Shard[shards];
+        _shards = array;
+        for (int i = 0; i < shards; i++) {
+            _shards[i] = new Shard<>(dispatcher, queueCapacity);
+            _shards[i].thread = threadFactory.newThread(_shards[i]);
+        }
+        for (Shard<Data> shard : _shards) {
+            shard.thread.start();
+        }
+    }
+
+    /** @return The dispatcher which has handlers */
+    @Nonnull
+    public TopicDispatcher<Data> getDispatcher() {
+        return _dispatcher;
+    }
+
+    /**
+     * Pass a message to the worker of the topic.
+     * @param topic A topic
+     * @param data A message data passing to handlers
+     * @return {@code true} if queued or handled on the caller's thread,
+     *         {@code false} if the topic is empty, the message is dropped, or shut down
+     */
+    public boolean dispatch(@Nullable String topic, @Nullable Data data) {
+        if (Strings.isNullOrEmpty(topic) || _shutdown) {
+            return false;
+        }
+
+        Shard<Data> shard = _shards[(spread(shardHash(topic)) & Integer.MAX_VALUE) % _shards.length];
+        Message<Data> message = new Message<>(topic, data);
+        if (shard.queue.offer(message)) {
+            return true;
+        }
+
+        switch (_overflowPolicy) {
+        case BLOCK:
+            try {
+                while (!shard.queue.offer(message, BLOCK_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (_shutdown) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                _droppedCount.incrementAndGet();
+                return false;
+            }
+        case CALLER_RUNS:
+            _dispatcher.dispatch(topic, data);
+            return true;
+        default:
+            _droppedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /** @return Number of messages discarded because a queue was full */
+    public long getDroppedCount() {
+        return _droppedCount.get();
+    }
+
+    /**
+     * Stop accepting messages. Workers exit after handling queued messages.
+     * Messages dispatched concurrently with this call might not be handled,
+     * and callers waiting for a space of a full queue return without queueing.
+     * This does not wait for a worker, even if its queue is full.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (_shutdown) {
+                return;
+            }
+            _shutdown = true;
+        }
+        for (Shard<Data> shard : _shards) {
+            shard.stop();
+        }
+    }
+
+    /**
+     * Wait until all workers exit after {@link #shutdown()}.
+     * @param timeout Maximum time to wait
+     * @param unit Unit of the timeout
+     * @return {@code true} if all workers have exited, {@code false} if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Shard<Data> shard : _shards) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(shard.thread, remaining);
+            }
+            if (shard.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Hash code of the shard key; compatible with {@link String#hashCode()} of the key
+     */
+    private int shardHash(String topic) {
+        if (_shardLevel == WHOLE_TOPIC) {
+            return topic.hashCode();
+        }
+        int start = 0;
+        for (int level = 0; level < _shardLevel; level++) {
+            start = topic.indexOf('/', start) + 1;
+            if (start == 0) {
+                // not have the level
+                return topic.hashCode();
+            }
+        }
+        int end = topic.indexOf('/', start);
+        return TopicLevelMap.hash(topic, start, (end < 0) ? topic.length() : end);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A message in a queue.
+     */
+    private static final class Message<Data> {
+        final String topic;
+
+        final Data data;
+
+        Message(String topic, Data data) {
+            this.topic = topic;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A worker and its queue.
+     */
+    private static final class Shard<Data> implements Runnable {
+        /** Marker to stop the worker */
+        private static final Message<Object> STOP = new Message<>(null, null);
+
+        final TopicDispatcher<Data> dispatcher;
+
+        final BlockingQueue<Message<Data>> queue;
+
+        Thread thread;
+
+        /** Set when the marker could not be queued because the queue is full */
+        volatile boolean stopping;
+
+        Shard(TopicDispatcher<Data> dispatcher, int queueCapacity) {
+            this.dispatcher = dispatcher;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        @SuppressWarnings("unchecked")
+        void stop() {
+            stopping = true;
+            // if full, the worker exits when it has emptied the queue
+            queue.offer((Message<Data>) (Message<?>) STOP);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                // only this worker takes from the queue, so take() does not wait if not empty
+                if (stopping && queue.isEmpty()) {
+                    return;
+                }
+                Message<Data> message;
+                try {
+                    message = queue.take();
+                } catch (InterruptedException e) {
+                    // only stopped by the marker
+                    continue;
+                }
+                if (message == STOP) {
+                    return;
+                }
+                try {
+                    dispatcher.dispatch(message.topic, message.data);
+                } catch (Throwable t) {
+                    Thread current = Thread.currentThread();
+                    current.getUncaughtExceptionHandler().uncaughtException(current, t);
+                }
+            }
+        }
+    }
+}
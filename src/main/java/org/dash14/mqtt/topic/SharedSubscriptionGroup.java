@@ -0,0 +1,295 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Handlers of a shared subscription ({@code $share/{group}/{filter}}), which is registered
+ * to a hierarchy as one handler. Each message is passed to one of the handlers.
+ *
+ * <p>
+ * Adding or removing a handler creates a new group, which takes over the state of selection
+ * (the round-robin position and loads of handlers). Selecting a handler does not take any lock.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+@Immutable
+/* package */ final class SharedSubscriptionGroup<Data> implements TopicHandler<Data> {
+
+    /** Prefix of a topic-filter of a shared subscription */
+    /* package */ static final String PREFIX = "$share/";
+
+    private final String _group;
+
+    private final TopicDispatcher.SharedSelection _selection;
+
+    private final Member<Data>[] _members;
+
+    /** Position of the next handler for round-robin; shared by the groups which take over the state */
+    private final AtomicInteger _next;
+
+    private SharedSubscriptionGroup(String group, TopicDispatcher.SharedSelection selection,
+            Member<Data>[] members, AtomicInteger next) {
+        _group = group;
+        _selection = selection;
+        _members = members;
+        _next = next;
+    }
+
+    /* package */ String getGroup() {
+        return _group;
+    }
+
+    @Override
+    public void handleTopic(String topic, Data data) {
+        select(topic).handleTopic(topic, data);
+    }
+
+    /**
+     * @param topic A topic
+     * @return A handler to receive a message of the topic; it counts the load while handling
+     */
+    /* package */ TopicHandler<Data> select(String topic) {
+        Member<Data>[] members = _members;
+        if (members.length == 1) {
+            return members[0];
+        }
+        switch (_selection) {
+        case TOPIC_HASH:
+            return members[(spread(topic.hashCode()) & Integer.MAX_VALUE) % members.length];
+        case LEAST_LOADED: {
+            // start from the round-robin position, to spread messages among idle handlers
+            int start = (_next.getAndIncrement() & Integer.MAX_VALUE) % members.length;
+            Member<Data> selected = members[start];
+            int minLoad = selected.load.get();
+            for (int i = 1; i < members.length && minLoad > 0; i++) {
+                Member<Data> member = members[(start + i) % members.length];
+                int load = member.load.get();
+                if (load < minLoad) {
+                    selected = member;
+                    minLoad = load;
+                }
+            }
+            return selected;
+        }
+        default:
+            return members[(_next.getAndIncrement() & Integer.MAX_VALUE) % members.length];
+        }
+    }
+
+    /**
+     * Select a handler to receive a message later.
+     * The message is counted in the load of the handler from now until passed to
+     * {@link #handleQueued(TopicHandler, String, Object)} or {@link #cancelQueued(TopicHandler)}.
+     * @param topic A topic
+     * @return A handler to receive a message of the topic
+     */
+    /* package */ TopicHandler<Data> selectQueued(String topic) {
+        Member<Data> member = (Member<Data>) select(topic);
+        member.load.incrementAndGet();
+        return member;
+    }
+
+    /**
+     * Pass a message to a handler returned by {@link #selectQueued(String)}.
+     */
+    /* package */ static <Data> void handleQueued(TopicHandler<Data> handler, String topic, Data data) {
+        ((Member<Data>) handler).handleCounted(topic, data);
+    }
+
+    /**
+     * Stop counting a message for a handler returned by {@link #selectQueued(String)}, which is not handled.
+     */
+    /* package */ static void cancelQueued(TopicHandler<?> handler) {
+        ((Member<?>) handler).load.decrementAndGet();
+    }
+
+    /**
+     * Add a subscription to a list of subscriptions of a hierarchy.
+     * A subscription of a shared subscription is added to the group in the list.
+     * The list is kept in descending order of priorities, and in the added order for the same priority.
+     * A group has the priority of the subscription which creates it.
+     * @param handlers A mutable list of subscriptions
+     * @param subscription A subscription
+     */
+    /* package */ static <Data> void add(List<TopicSubscription<Data>> handlers,
+            TopicSubscription<Data> subscription) {
+        String group = subscription.getShareGroup();
+        if (group == null) {
+            handlers.add(PriorityOrder.insertionIndex(handlers, subscription.getPriority()), subscription);
+            return;
+        }
+
+        int index = indexOfGroup(handlers, group);
+        if (index < 0) {
+            @SuppressWarnings("unchecked")
+            Member<Data>[] members = new Member[] { new Member<>(subscription) };
+            SharedSubscriptionGroup<Data> newGroup = new SharedSubscriptionGroup<>(
+                    group, subscription.getShareSelection(), members, new AtomicInteger());
+            handlers.add(PriorityOrder.insertionIndex(handlers, subscription.getPriority()),
+                    new TopicSubscription<Data>(subscription.getTopicFilter(), subscription.getLevels(), newGroup,
+                            subscription.getPriority()));
+            return;
+        }
+
+        TopicSubscription<Data> entry = handlers.get(index);
+        SharedSubscriptionGroup<Data> current = (SharedSubscriptionGroup<Data>) entry.getHandler();
+        Member<Data>[] members = Arrays.copyOf(current._members, current._members.length + 1);
+        members[members.length - 1] = new Member<>(subscription);
+        handlers.set(index, new TopicSubscription<Data>(entry.getTopicFilter(), entry.getLevels(),
+                new SharedSubscriptionGroup<>(group, current._selection, members, current._next),
+                entry.getPriority()));
+    }
+
+    /**
+     * Find a subscription in a list of subscriptions of a hierarchy.
+     * @param handlers A list of subscriptions
+     * @param subscription A subscription to be found
+     * @param sameInstance {@code true} to find the same instance of the subscription,
+     *                     {@code false} to find the first subscription of the same handler
+     * @return Index of the found subscription, or of the group which has the found subscription,
+     *         or {@code -1} if not found
+     */
+    /* package */ static <Data> int indexOf(List<TopicSubscription<Data>> handlers,
+            TopicSubscription<Data> subscription, boolean sameInstance) {
+        String group = subscription.getShareGroup();
+        if (group != null) {
+            int index = indexOfGroup(handlers, group);
+            if (index >= 0) {
+                TopicSubscription<Data> entry = handlers.get(index);
+                SharedSubscriptionGroup<Data> current = (SharedSubscriptionGroup<Data>) entry.getHandler();
+                if (current.indexOfMember(subscription, sameInstance) < 0) {
+                    index = -1;
+                }
+            }
+            return index;
+        }
+
+        for (int i = 0; i < handlers.size(); i++) {
+            TopicSubscription<Data> s = handlers.get(i);
+            if (sameInstance ? s == subscription : s.getHandler().equals(subscription.getHandler())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove a subscription found by {@link #indexOf(List, TopicSubscription, boolean)}.
+     * @param handlers A mutable list of subscriptions
+     * @param index An index returned by {@link #indexOf(List, TopicSubscription, boolean)}
+     * @param subscription A subscription to be removed
+     * @param sameInstance The same as {@link #indexOf(List, TopicSubscription, boolean)}
+     */
+    /* package */ static <Data> void remove(List<TopicSubscription<Data>> handlers, int index,
+            TopicSubscription<Data> subscription, boolean sameInstance) {
+        if (subscription.getShareGroup() == null) {
+            handlers.remove(index);
+            return;
+        }
+
+        TopicSubscription<Data> entry = handlers.get(index);
+        SharedSubscriptionGroup<Data> current = (SharedSubscriptionGroup<Data>) entry.getHandler();
+        if (current._members.length == 1) {
+            handlers.remove(index);
+            return;
+        }
+        int memberIndex = current.indexOfMember(subscription, sameInstance);
+        @SuppressWarnings("unchecked")
+        Member<Data>[] members = new Member[current._members.length - 1];
+        System.arraycopy(current._members, 0, members, 0, memberIndex);
+        System.arraycopy(current._members, memberIndex + 1, members, memberIndex, members.length - memberIndex);
+        handlers.set(index, new TopicSubscription<Data>(entry.getTopicFilter(), entry.getLevels(),
+                new SharedSubscriptionGroup<>(current._group, current._selection, members, current._next),
+                entry.getPriority()));
+    }
+
+    /**
+     * Add subscriptions in a list of subscriptions of a hierarchy to a collection.
+     * A group is replaced with the subscriptions of its handlers.
+     * @param handlers A list of subscriptions
+     * @param result A collection which subscriptions are added to
+     */
+    /* package */ static <Data> void addSubscriptions(List<TopicSubscription<Data>> handlers,
+            Collection<? super TopicSubscription<Data>> result) {
+        for (int i = 0; i < handlers.size(); i++) {
+            TopicSubscription<Data> entry = handlers.get(i);
+            if (entry.getHandler() instanceof SharedSubscriptionGroup) {
+                for (Member<Data> member : ((SharedSubscriptionGroup<Data>) entry.getHandler())._members) {
+                    result.add(member.subscription);
+                }
+            } else {
+                result.add(entry);
+            }
+        }
+    }
+
+    private int indexOfMember(TopicSubscription<Data> subscription, boolean sameInstance) {
+        for (int i = 0; i < _members.length; i++) {
+            TopicSubscription<Data> s = _members[i].subscription;
+            if (sameInstance ? s == subscription : s.getHandler().equals(subscription.getHandler())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static <Data> int indexOfGroup(List<TopicSubscription<Data>> handlers, @Nullable String group) {
+        for (int i = 0; i < handlers.size(); i++) {
+            TopicHandler<Data> handler = handlers.get(i).getHandler();
+            if (handler instanceof SharedSubscriptionGroup
+                    && ((SharedSubscriptionGroup<Data>) handler)._group.equals(group)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return PREFIX + _group + "=" + _members.length + " handlers";
+    }
+
+    /**
+     * A handler in a group, which counts messages being handled or waiting for it.
+     */
+    private static final class Member<Data> implements TopicHandler<Data> {
+        final TopicSubscription<Data> subscription;
+
+        /** Number of messages being handled, or queued for this handler */
+        final AtomicInteger load = new AtomicInteger();
+
+        Member(TopicSubscription<Data> subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void handleTopic(String topic, Data data) {
+            load.incrementAndGet();
+            handleCounted(topic, data);
+        }
+
+        /** Handle a message already counted in the load */
+        void handleCounted(String topic, Data data) {
+            try {
+                TopicDispatcher.handle(subscription.getHandler(), subscription.getLevels(), topic, data);
+            } finally {
+                load.decrementAndGet();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return subscription.getHandler().toString();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.dash14.mqtt.topic;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Counters added by many threads at once, such as counters of dispatching.
+ *
+ * <p>
+ * Values are added to a base array until adding fails by contention. After that, each thread adds
+ * to a stripe of cells chosen by its thread ID, and stripes are apart by more than a cache line,
+ * so that threads do not write a same cache line. Values are summed on reading.
+ * Adding and reading do not take any lock, and values read while adding are not a consistent snapshot.
+ * </p>
+ */
+@ThreadSafe
+/* package */ final class StripedCounters {
+
+    /** Number of longs between stripes; 128 bytes, not to share a cache line or its adjacent line */
+    private static final int PADDING = 16;
+
+    /** Number of stripes; a power of two */
+    private static final int STRIPES = Math.min(
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1), 64);
+
+    private final int _length;
+
+    private final AtomicLongArray _base;
+
+    /** Stripes of cells; {@code null} until adding is contended */
+    private final AtomicReference<AtomicLongArray> _cells = new AtomicReference<>();
+
+    /**
+     * Constructor.
+     * @param length Number of counters
+     */
+    /* package */ StripedCounters(int length) {
+        _length = length;
+        _base = new AtomicLongArray(length);
+    }
+
+    /**
+     * @param index Index of a counter
+     * @param delta A value to be added
+     */
+    /* package */ void add(int index, long delta) {
+        AtomicLongArray cells = _cells.get();
+        if (cells == null) {
+            long value = _base.get(index);
+            if (_base.compareAndSet(index, value, value + delta)) {
+                return;
+            }
+            cells = cells();
+        }
+        // threads of a pool have consecutive IDs, which are spread to different stripes
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.addAndGet(stripe * (_length + PADDING) + index, delta);
+    }
+
+    /**
+     * @param index Index of a counter
+     * @return Sum of added values
+     */
+    /* package */ long get(int index) {
+        long sum = _base.get(index);
+        AtomicLongArray cells = _cells.get();
+        if (cells != null) {
+            for (int i = index; i < cells.length(); i += _length + PADDING) {
+                sum += cells.get(i);
+            }
+        }
+        return sum;
+    }
+
+    /* package */ void reset() {
+        for (int i = 0; i < _length; i++) {
+            _base.set(i, 0L);
+        }
+        AtomicLongArray cells = _cells.get();
+        if (cells != null) {
+            for (int i = 0; i < cells.length(); i++) {
+                cells.set(i, 0L);
+            }
+        }
+    }
+
+    private AtomicLongArray cells() {
+        AtomicLongArray cells = _cells.get();
+        if (cells == null) {
+            _cells.compareAndSet(null, new AtomicLongArray(STRIPES * (_length + PADDING)));
+            cells = _cells.get();
+        }
+        return cells;
+    }
+}
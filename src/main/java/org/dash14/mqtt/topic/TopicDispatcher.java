@@ -1,61 +1,203 @@
 package org.dash14.mqtt.topic;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.StringJoiner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
-import org.dash14.mqtt.topic.handler.ThroughTopicMatchHandler;
-import org.dash14.mqtt.topic.handler.TopicMatchHandler;
-import org.dash14.mqtt.topic.handler.TopicPatternMatchHandler;
-import org.dash14.mqtt.topic.handler.TopicPrefixMatchHandler;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * A manager for message handling for MQTT-subscribe topic filter.
+ *
+ * <p>
+ * {@link #dispatch(String, Data)} does not take any lock.
+ * Registered handlers are held by an immutable snapshot, and
+ * {@link #addHandler(String, TopicHandler)} / {@link #removeHandler(String, TopicHandler)}
+ * build a new snapshot and replace it.
+ * {@link #addHandlers(Iterable)}, {@link #removeHandlers(Iterable)} and {@link #replaceHandlers(Iterable)}
+ * apply many changes to one new snapshot.
+ * Single changes by concurrent threads are queued and combined: while one thread builds a snapshot,
+ * others only wait for it, and the next thread applies all of their changes to one snapshot.
+ * Each change is visible to dispatching when the method returns.
+ * </p>
+ * <p>
+ * For a large set of topic-filters which rarely changes, {@link #compile()} packs the
+ * current snapshot into arrays. It is used until the next change of handlers.
+ * </p>
+ * <p>
+ * When the same topics are dispatched repeatedly, {@link #enableMatchCache(long)} keeps
+ * matched handlers by topic. Cached results are removed when affected by a change of handlers.
+ * </p>
+ * <p>
+ * {@link #dispatchAsync(String, Data)} calls handlers on an executor configured by
+ * {@link #enableAsyncDispatch(Executor, int, Ordering)}, instead of the caller's thread.
+ * </p>
+ * <p>
+ * A topic-filter {@code $share/{group}/{filter}} is a shared subscription: handlers added with
+ * the same group and filter receive each message matched with the filter, but only one of them
+ * is called for a message, selected as specified by {@link #setSharedSelection(SharedSelection)}.
+ * </p>
+ * <p>
+ * {@link #addHandler(String, TopicHandler, int)} adds a handler with a priority. Handlers of higher
+ * priorities are called first, and a {@link ConsumingTopicHandler} can stop calling handlers after it.
+ * </p>
+ * <p>
+ * A {@link ParameterizedTopicHandler} receives hierarchies of a topic matched with wildcards.
+ * </p>
+ * <p>
+ * A handler matched by more than one topic-filter is called for each of them, unless
+ * {@link #enableHandlerDeduplication()} is enabled.
+ * </p>
+ * <p>
+ * {@link #getMatchedSubscriptions(CharSequence)} finds subscriptions which receive a topic,
+ * and {@link #getOverlappingSubscriptions(String)}, {@link #getCoveringSubscriptions(String)} and
+ * {@link #getCoveredSubscriptions(String)} find subscriptions by relations of topic-filters.
+ * </p>
+ * <p>
+ * {@link #enableBrokerSubscriptions(BrokerSubscriptionListener)} keeps the minimal set of topic-filters
+ * to subscribe at a broker, and notifies changes of it.
+ * </p>
+ * <p>
+ * {@link #enablePrefilter()} rejects topics which can't match any topic-filter before matching,
+ * by the first hierarchy of the topic.
+ * </p>
+ * <p>
+ * {@link #enableRetainedMessages(long)} keeps the last message of each topic, and passes them to
+ * added handlers.
+ * </p>
+ * <p>
+ * {@link #enableMetrics()} records counts of matched topic-filters and latencies of handlers.
+ * Nothing is recorded or measured while it is disabled.
+ * </p>
  */
 public class TopicDispatcher<Data> {
 
-    /** Handlers for exact match */
-    private ListMultimap<String, TopicHandler<Data>> _exactMatchHanders;
+    /** Order of handling messages by {@link TopicDispatcher#dispatchAsync(String, Data)} */
+    public enum Ordering {
+        /** Messages of a same topic are handled in the dispatched order, one by one */
+        TOPIC,
+        /** Messages to a same handler are handled in the dispatched order, one by one */
+        HANDLER
+    }
+
+    /** Selection of a handler in a group of a shared subscription ({@code $share/{group}/{filter}}) */
+    public enum SharedSelection {
+        /** Handlers in turn */
+        ROUND_ROBIN,
+        /**
+         * A handler handling the fewest messages at the time;
+         * messages queued for a handler by {@link Ordering#HANDLER} are counted until handled
+         */
+        LEAST_LOADED,
+        /** A handler by the hash of the topic, so that messages of a same topic go to a same handler */
+        TOPIC_HASH
+    }
+
+    /** Current handlers; replaced on every change of handlers */
+    private volatile Snapshot<Data> _snapshot;
+
+    /** Cache of matched handlers by topic; {@code null} if disabled */
+    private volatile TopicMatchCache<Data> _matchCache;
+
+    /** Invoker for {@link #dispatchAsync(String, Data)}; {@code null} if disabled */
+    private volatile AsyncHandlerInvoker<Data> _asyncInvoker;
+
+    /** Selection for groups of shared subscriptions to be created */
+    private volatile SharedSelection _sharedSelection = SharedSelection.ROUND_ROBIN;
+
+    /** Metrics of dispatching; {@code null} if disabled */
+    private volatile DispatchMetrics _metrics;
+
+    /** Last messages of dispatched topics; {@code null} if disabled */
+    private volatile RetainedMessageStore<Data> _retainedMessages;
+
+    /** Calls each handler at most once for a message if {@code true} */
+    private volatile boolean _deduplicateHandlers;
+
+    /** Builds {@link TopicPrefilter} for each snapshot if {@code true}. Guarded by this */
+    private boolean _prefilterEnabled;
+
+    /** Number of messages rejected by {@link TopicPrefilter} */
+    private final StripedCounters _prefilterRejectedCount = new StripedCounters(1);
+
+    /** Numbers of registered handlers. Guarded by this */
+    private HandlerIds _handlerIds = new HandlerIds();
 
-    /** Handlers for pattern(wildcard) match */
-    private HierarchicallyTopicMatcher<Data> _hierarchicallyMatcher;
+    /**
+     * Changes by {@link #addHandler(String, TopicHandler)}, {@link #removeHandler(String, TopicHandler)} and
+     * {@link #removeSubscription(TopicSubscription)} waiting to be applied by a thread holding the lock
+     */
+    private final ConcurrentLinkedQueue<PendingChange<Data>> _pendingChanges = new ConcurrentLinkedQueue<>();
 
-    /** Pattern for a invalid topic */
-    private static final Pattern INVALID_TOPIC_PATTERN = Pattern.compile("(#.+|[^/]\\+|\\+[^/])");
+    /** Minimal set of topic-filters to subscribe at a broker; {@code null} if disabled. Guarded by this */
+    private BrokerSubscriptionTracker<Data> _brokerSubscriptions;
+
+    /** Reusable lists of matched subscriptions for {@link #dispatch(String, Data)} */
+    private final ThreadLocal<ArrayList<TopicSubscription<Data>>> _handlersBuffer
+            = new ThreadLocal<ArrayList<TopicSubscription<Data>>>() {
+        @Override
+        protected ArrayList<TopicSubscription<Data>> initialValue() {
+            return new ArrayList<>();
+        }
+    };
+
+    private final ThreadLocal<HandlerIds.Stamps> _handlerStamps = new ThreadLocal<HandlerIds.Stamps>() {
+        @Override
+        protected HandlerIds.Stamps initialValue() {
+            return new HandlerIds.Stamps();
+        }
+    };
 
     /** Constructor */
     public TopicDispatcher() {
-        _exactMatchHanders = ArrayListMultimap.create(16, 2);
-        _hierarchicallyMatcher = new HierarchicallyTopicMatcher<>();
+        _snapshot = newSnapshot(new HierarchicallyTopicMatcher<Data>());
     }
 
     /**
      * Add topic-filter and handler pair.
      * @param topicFilter A topic-filter; It can be used wildcards ('+', '#')
      * @param handler A handler for {@link #dispatch(String, Data)} called with specified topic-filter
+     * @return A handle for {@link #removeSubscription(TopicSubscription)}
      */
-    public synchronized void addHandler(@Nonnull String topicFilter, @Nonnull TopicHandler<Data> handler) {
-        topicFilter = Objects.requireNonNull(topicFilter);
-        handler = Objects.requireNonNull(handler);
-
-        validateTopicFilter(topicFilter);
+    public TopicSubscription<Data> addHandler(@Nonnull String topicFilter, @Nonnull TopicHandler<Data> handler) {
+        return addHandler(topicFilter, handler, 0);
+    }
 
-        if (topicFilter.indexOf('#') < 0 && topicFilter.indexOf('+') < 0) {
-            // not has wildcard
-            _exactMatchHanders.put(topicFilter, handler);
-        } else {
-            // has wildcard
-            updateHierarchicallyMatchers(topicFilter, _hierarchicallyMatcher, handler);
-        }
+    /**
+     * Add topic-filter and handler pair with a priority.
+     * <p>
+     * Matched handlers are called in descending order of priorities, whichever topic-filters they
+     * are matched with; handlers of the same priority are called in the order of matching.
+     * A {@link ConsumingTopicHandler} can stop calling the handlers after it.
+     * Handlers added by other methods have the priority {@code 0}.
+     * </p>
+     * @param topicFilter A topic-filter; It can be used wildcards ('+', '#')
+     * @param handler A handler for {@link #dispatch(String, Data)} called with specified topic-filter
+     * @param priority Handlers of higher priorities are called first
+     * @return A handle for {@link #removeSubscription(TopicSubscription)}
+     */
+    public TopicSubscription<Data> addHandler(@Nonnull String topicFilter,
+            @Nonnull TopicHandler<Data> handler, int priority) {
+        PendingChange<Data> change = new PendingChange<>(newSubscription(topicFilter, handler, priority), true, false);
+        apply(change);
+        TopicSubscription<Data> subscription = change.result;
+        replayRetainedMessages(Collections.singletonList(subscription));
+        return subscription;
     }
 
     /**
@@ -64,26 +206,267 @@ public class TopicDispatcher<Data> {
      * @param handler A registered handler
      * @return {@code true} if removed, {@code false} otherwise
      */
-    public synchronized boolean removeHandler(@Nonnull String topicFilter, @Nonnull TopicHandler<Data> handler) {
-        topicFilter = Objects.requireNonNull(topicFilter);
-        handler = Objects.requireNonNull(handler);
+    public boolean removeHandler(@Nonnull String topicFilter, @Nonnull TopicHandler<Data> handler) {
+        PendingChange<Data> change = new PendingChange<>(newSubscription(topicFilter, handler, 0), false, false);
+        apply(change);
+        return change.result != null;
+    }
 
-        validateTopicFilter(topicFilter);
+    /**
+     * Remove a pair added by {@link #addHandler(String, TopicHandler)}.
+     * <p>
+     * The topic-filter is not parsed again, and only the hierarchies on the path of the
+     * topic-filter are visited.
+     * </p>
+     * @param subscription A handle returned by {@link #addHandler(String, TopicHandler)}
+     * @return {@code true} if removed, {@code false} if already removed or added to another dispatcher
+     */
+    public boolean removeSubscription(@Nonnull TopicSubscription<Data> subscription) {
+        PendingChange<Data> change = new PendingChange<>(Objects.requireNonNull(subscription), false, true);
+        apply(change);
+        return change.result != null;
+    }
 
-        boolean removed = false;
-        if (topicFilter.indexOf('#') < 0 && topicFilter.indexOf('+') < 0) {
-            // not has wildcard
-            removed = _exactMatchHanders.remove(topicFilter, handler);
-        } else {
-            // has wildcard
-            HierarchicallyTopicMatcher<Data> matchers = new HierarchicallyTopicMatcher<>();
-            updateHierarchicallyMatchers(topicFilter, matchers, handler);
+    /**
+     * Apply a change, together with changes of other threads waiting for the lock.
+     * A failure of the change is thrown in this thread, even if another thread applies it.
+     */
+    private void apply(PendingChange<Data> change) {
+        _pendingChanges.add(change);
+        Throwable failure;
+        synchronized (this) {
+            if (!change.applied) {
+                applyPendingChanges();
+            }
+            failure = change.failure;
+        }
+        if (failure != null) {
+            Throwables.throwIfUnchecked(failure);
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * Apply all waiting changes to one new snapshot in the queued order. Must be called with the lock.
+     * <p>
+     * A change which fails is skipped, and the failure is kept for the thread which requested it.
+     * A failure after publishing the snapshot, e.g. by a listener, is kept for all applied changes.
+     * </p>
+     */
+    private void applyPendingChanges() {
+        List<PendingChange<Data>> changes = new ArrayList<>();
+        PendingChange<Data> change;
+        while ((change = _pendingChanges.poll()) != null) {
+            changes.add(change);
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        try {
+            TopicTreeBuilder<Data> builder = new TopicTreeBuilder<>(_snapshot.getHierarchicallyMatcher());
+            List<TopicSubscription<Data>> added = new ArrayList<>();
+            List<TopicSubscription<Data>> removed = new ArrayList<>();
+            for (PendingChange<Data> c : changes) {
+                TopicSubscription<Data> registered = null;
+                try {
+                    // handlers are compared by equals() and hashCode(), which may throw
+                    if (c.adding) {
+                        registered = register(c.subscription);
+                        builder.add(registered);
+                        c.result = registered;
+                        added.add(registered);
+                    } else if (builder.remove(c.subscription, c.sameInstance)) {
+                        c.result = c.subscription;
+                        removed.add(c.subscription);
+                    }
+                } catch (Throwable t) {
+                    if (registered != null && c.result == null) {
+                        _handlerIds.release(registered.getHandler());
+                    }
+                    c.failure = t;
+                }
+            }
+            if (added.isEmpty() && removed.isEmpty()) {
+                return;
+            }
 
-            // subtract: _hierarchicallyMatcher - matchers
-            removed = _hierarchicallyMatcher.subtract(matchers);
+            boolean published = false;
+            try {
+                _snapshot = newSnapshot(builder.build());
+                published = true;
+                for (PendingChange<Data> c : changes) {
+                    if (c.result != null) {
+                        invalidateMatchCache(c.subscription.getLevels());
+                    }
+                }
+                for (int i = 0; i < removed.size(); i++) {
+                    _handlerIds.release(removed.get(i).getHandler());
+                }
+                removeMetrics(removed);
+                updateBrokerSubscriptions(added, removed);
+            } catch (Throwable t) {
+                if (!published) {
+                    // added handlers are not visible
+                    for (int i = 0; i < added.size(); i++) {
+                        _handlerIds.release(added.get(i).getHandler());
+                    }
+                }
+                for (PendingChange<Data> c : changes) {
+                    if (c.result != null) {
+                        c.failure = t;
+                    }
+                }
+            }
+        } finally {
+            for (PendingChange<Data> c : changes) {
+                c.applied = true;
+            }
+        }
+    }
+
+    /**
+     * Add topic-filter and handler pairs at once.
+     * <p>
+     * All pairs are visible to dispatching at the same time. If a topic-filter is invalid,
+     * none of the pairs are added.
+     * </p>
+     * @param subscriptions Pairs of a topic-filter and a handler
+     * @return Handles of the added pairs in the same order
+     */
+    public synchronized List<TopicSubscription<Data>> addHandlers(
+            @Nonnull Iterable<? extends Map.Entry<String, ? extends TopicHandler<Data>>> subscriptions) {
+        List<TopicSubscription<Data>> added = newSubscriptions(subscriptions);
+        TopicTreeBuilder<Data> builder = new TopicTreeBuilder<>(_snapshot.getHierarchicallyMatcher());
+        for (int i = 0; i < added.size(); i++) {
+            added.set(i, register(added.get(i)));
+            builder.add(added.get(i));
         }
+        _snapshot = newSnapshot(builder.build());
+        invalidateMatchCache();
+        updateBrokerSubscriptions(added, Collections.<TopicSubscription<Data>>emptyList());
+        replayRetainedMessages(added);
+        return added;
+    }
 
-        return removed;
+    /**
+     * Remove topic-filter and handler pairs at once.
+     * <p>
+     * All pairs are invisible to dispatching at the same time. If a topic-filter is invalid,
+     * none of the pairs are removed.
+     * </p>
+     * @param subscriptions Pairs of a registered topic-filter and a registered handler
+     * @return Number of removed pairs
+     */
+    public synchronized int removeHandlers(
+            @Nonnull Iterable<? extends Map.Entry<String, ? extends TopicHandler<Data>>> subscriptions) {
+        List<TopicSubscription<Data>> removing = newSubscriptions(subscriptions);
+        TopicTreeBuilder<Data> builder = new TopicTreeBuilder<>(_snapshot.getHierarchicallyMatcher());
+        List<TopicSubscription<Data>> removed = new ArrayList<>();
+        for (int i = 0; i < removing.size(); i++) {
+            TopicSubscription<Data> subscription = removing.get(i);
+            if (builder.remove(subscription, false)) {
+                removed.add(subscription);
+            }
+        }
+        return publishRemoved(builder, removed);
+    }
+
+    /**
+     * Remove pairs added by {@link #addHandler(String, TopicHandler)} or {@link #addHandlers(Iterable)} at once.
+     * @param subscriptions Handles of pairs
+     * @return Number of removed pairs
+     * @see #removeSubscription(TopicSubscription)
+     */
+    public synchronized int removeSubscriptions(@Nonnull Iterable<? extends TopicSubscription<Data>> subscriptions) {
+        Objects.requireNonNull(subscriptions);
+        TopicTreeBuilder<Data> builder = new TopicTreeBuilder<>(_snapshot.getHierarchicallyMatcher());
+        List<TopicSubscription<Data>> removed = new ArrayList<>();
+        for (TopicSubscription<Data> subscription : subscriptions) {
+            if (builder.remove(subscription, true)) {
+                removed.add(subscription);
+            }
+        }
+        return publishRemoved(builder, removed);
+    }
+
+    private int publishRemoved(TopicTreeBuilder<Data> builder, List<TopicSubscription<Data>> removed) {
+        if (!removed.isEmpty()) {
+            _snapshot = newSnapshot(builder.build());
+            invalidateMatchCache();
+            for (int i = 0; i < removed.size(); i++) {
+                _handlerIds.release(removed.get(i).getHandler());
+            }
+            removeMetrics(removed);
+            updateBrokerSubscriptions(Collections.<TopicSubscription<Data>>emptyList(), removed);
+        }
+        return removed.size();
+    }
+
+    /**
+     * Drop metrics of handlers and topic-filters which are no longer registered.
+     * Called after a new snapshot is published and removed handlers are released.
+     * @param removed Removed subscriptions
+     */
+    private void removeMetrics(List<TopicSubscription<Data>> removed) {
+        DispatchMetrics metrics = _metrics;
+        if (metrics == null) {
+            return;
+        }
+        HierarchicallyTopicMatcher<Data> tree = _snapshot.getHierarchicallyMatcher();
+        List<TopicSubscription<Data>> covering = new ArrayList<>();
+        for (int i = 0; i < removed.size(); i++) {
+            TopicSubscription<Data> subscription = removed.get(i);
+            if (!_handlerIds.contains(subscription.getHandler())) {
+                metrics.removeHandler(subscription.getHandler());
+            }
+            // the same topic-filter is one of the covering ones
+            covering.clear();
+            tree.collectCovering(subscription.getLevels(), 0, covering);
+            if (!containsTopicFilter(covering, subscription.getTopicFilter())) {
+                metrics.removeTopicFilter(subscription.getTopicFilter());
+            }
+        }
+    }
+
+    private static <Data> boolean containsTopicFilter(List<TopicSubscription<Data>> subscriptions,
+            String topicFilter) {
+        for (int i = 0; i < subscriptions.size(); i++) {
+            if (subscriptions.get(i).getTopicFilter().equals(topicFilter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace all topic-filter and handler pairs.
+     * <p>
+     * Dispatching sees either all of the old pairs or all of the new pairs.
+     * If a topic-filter is invalid, nothing is changed.
+     * </p>
+     * @param subscriptions Pairs of a topic-filter and a handler
+     * @return Handles of the added pairs in the same order
+     */
+    public synchronized List<TopicSubscription<Data>> replaceHandlers(
+            @Nonnull Iterable<? extends Map.Entry<String, ? extends TopicHandler<Data>>> subscriptions) {
+        List<TopicSubscription<Data>> added = newSubscriptions(subscriptions);
+        List<TopicSubscription<Data>> removed = new ArrayList<>();
+        _snapshot.getHierarchicallyMatcher().collectAll(removed);
+        TopicTreeBuilder<Data> builder = new TopicTreeBuilder<>(null);
+        _handlerIds = new HandlerIds();
+        for (int i = 0; i < added.size(); i++) {
+            added.set(i, register(added.get(i)));
+            builder.add(added.get(i));
+        }
+        HierarchicallyTopicMatcher<Data> tree = builder.build();
+        _snapshot = newSnapshot(tree);
+        invalidateMatchCache();
+        removeMetrics(removed);
+        if (_brokerSubscriptions != null) {
+            _brokerSubscriptions.reset(tree);
+        }
+        return added;
     }
 
     /**
@@ -96,91 +479,1078 @@ public class TopicDispatcher<Data> {
         if (Strings.isNullOrEmpty(topic)) {
             return false;
         }
+        return dispatchTopic(topic, data);
+    }
 
-        List<TopicHandler<Data>> handlers = new ArrayList<>();
+    /**
+     * Call handlers which is matched topic of UTF-8 bytes.
+     * <p>
+     * A topic of ASCII characters is matched without decoding, and decoded only if a handler is matched.
+     * </p>
+     * @param topic An array which has UTF-8 bytes of a topic
+     * @param offset Start position of the topic in the array
+     * @param length Number of bytes of the topic
+     * @param data A message data passing to handlers
+     * @return {@code true} if called least one handler, {@code false} if not called handlers
+     * @see #dispatch(String, Data)
+     */
+    public boolean dispatchUtf8(@Nonnull byte[] topic, int offset, int length, @Nullable Data data) {
+        if (length == 0) {
+            return false;
+        }
+        return dispatchTopic(AsciiTopic.of(topic, offset, length), data);
+    }
 
-        synchronized (this) {
-            // exactly match
-            handlers.addAll(_exactMatchHanders.get(topic));
+    /**
+     * Call handlers which is matched topic of UTF-8 bytes.
+     * <p>
+     * A topic of ASCII characters is matched without decoding, and decoded only if a handler is matched.
+     * </p>
+     * @param topic A buffer which has UTF-8 bytes of a topic between the position and the limit;
+     *              the position is not changed
+     * @param data A message data passing to handlers
+     * @return {@code true} if called least one handler, {@code false} if not called handlers
+     * @see #dispatch(String, Data)
+     */
+    public boolean dispatchUtf8(@Nonnull ByteBuffer topic, @Nullable Data data) {
+        if (!topic.hasRemaining()) {
+            return false;
+        }
+        return dispatchTopic(AsciiTopic.of(topic), data);
+    }
+
+    private boolean dispatchTopic(CharSequence topic, Data data) {
+        RetainedMessageStore<Data> retained = _retainedMessages;
+        if (retained != null) {
+            retained.put(topic.toString(), data);
+        }
+        if (!_snapshot.mightMatch(topic)) {
+            recordRejected(_metrics, 1);
+            return false;
+        }
+        ArrayList<TopicSubscription<Data>> buffer = _handlersBuffer.get();
+        if (!buffer.isEmpty()) {
+            // dispatched recursively from a handler; the buffer is in use
+            buffer = new ArrayList<>();
+        }
+
+        DispatchMetrics metrics = _metrics;
+        try {
+            if (metrics != null) {
+                return dispatchMeasured(topic, data, buffer, metrics);
+            }
+            List<TopicSubscription<Data>> matched = match(topic, buffer);
+            if (matched.isEmpty()) {
+                return false;
+            }
+            String topicString = topic.toString();
+            if (_deduplicateHandlers) {
+                List<TopicSubscription<Data>> distinct = deduplicate(matched);
+                for (int i = 0; i < distinct.size(); i++) {
+                    if (invokeDistinct(distinct.get(i), topicString, data, matched)) {
+                        break;
+                    }
+                }
+                return true;
+            }
+            for (int i = 0; i < matched.size(); i++) {
+                if (invoke(matched.get(i), topicString, data)) {
+                    break;
+                }
+            }
+            return true;
+        } finally {
+            buffer.clear();
+        }
+    }
 
-            // wildcard match
-            _hierarchicallyMatcher.matchHierarchically(topic, topic, handlers);
+    private boolean dispatchMeasured(CharSequence topic, Data data,
+            ArrayList<TopicSubscription<Data>> buffer, DispatchMetrics metrics) {
+        long startTime = System.nanoTime();
+        List<TopicSubscription<Data>> matched = match(topic, buffer);
+        long matchedTime = System.nanoTime();
+        metrics.recordMatch(matched, 1, matchedTime - startTime);
+        if (matched.isEmpty()) {
+            return false;
         }
 
-        for (TopicHandler<Data> handler : handlers) {
+        String topicString = topic.toString();
+        boolean deduplicate = _deduplicateHandlers;
+        List<TopicSubscription<Data>> distinct = deduplicate ? deduplicate(matched) : matched;
+        long handlerTime = matchedTime;
+        try {
+            boolean consumed = false;
+            for (int i = 0; i < distinct.size() && !consumed; i++) {
+                TopicSubscription<Data> subscription = distinct.get(i);
+                try {
+                    consumed = deduplicate ? invokeDistinct(subscription, topicString, data, matched)
+                            : invoke(subscription, topicString, data);
+                } finally {
+                    long endTime = System.nanoTime();
+                    metrics.recordHandler(subscription, endTime - handlerTime);
+                    handlerTime = endTime;
+                }
+            }
+        } finally {
+            metrics.recordHandlers(handlerTime - matchedTime);
+        }
+        return true;
+    }
+
+    /**
+     * @param matched Matched subscriptions
+     * @return Subscriptions excluding handlers which appear earlier; {@code matched} itself if no duplicates
+     */
+    private List<TopicSubscription<Data>> deduplicate(List<TopicSubscription<Data>> matched) {
+        int size = matched.size();
+        if (size < 2) {
+            return matched;
+        }
+        // only marks handlers; handlers are called after that, even if they dispatch recursively
+        HandlerIds.Stamps stamps = _handlerStamps.get();
+        stamps.clear();
+        for (int i = 0; i < size; i++) {
+            int id = matched.get(i).getHandlerId();
+            if (id < 0 || stamps.mark(id)) {
+                continue;
+            }
+            // found the first duplicate
+            List<TopicSubscription<Data>> distinct = new ArrayList<>(size - 1);
+            distinct.addAll(matched.subList(0, i));
+            for (int j = i + 1; j < size; j++) {
+                TopicSubscription<Data> subscription = matched.get(j);
+                id = subscription.getHandlerId();
+                if (id < 0 || stamps.mark(id)) {
+                    distinct.add(subscription);
+                }
+            }
+            return distinct;
+        }
+        return matched;
+    }
+
+    private void recordRejected(@Nullable DispatchMetrics metrics, int messages) {
+        _prefilterRejectedCount.add(0, messages);
+        if (metrics != null) {
+            metrics.recordRejected(messages);
+        }
+    }
+
+    /**
+     * @return {@code true} if the message is consumed by a {@link ConsumingTopicHandler}
+     */
+    private static <Data> boolean invoke(TopicSubscription<Data> subscription, String topic, Data data) {
+        TopicHandler<Data> handler = subscription.getHandler();
+        if (handler instanceof ConsumingTopicHandler) {
+            return ((ConsumingTopicHandler<Data>) handler).consumeTopic(topic, data);
+        }
+        handle(handler, subscription.getLevels(), topic, data);
+        return false;
+    }
+
+    /**
+     * Call a handler, with parameters if a {@link ParameterizedTopicHandler}.
+     * <p>
+     * A {@link ConsumingTopicHandler} is called by {@link ConsumingTopicHandler#consumeTopic(String, Object)},
+     * but the result is ignored; used where consuming can't stop later handlers, by asynchronous dispatch and
+     * by a handler of a shared subscription.
+     * </p>
+     * @param handler A handler
+     * @param levels Hierarchies of the matched topic-filter
+     * @param topic A topic
+     * @param data A message data
+     */
+    /* package */ static <Data> void handle(TopicHandler<Data> handler, String[] levels, String topic, Data data) {
+        if (handler instanceof ConsumingTopicHandler) {
+            ((ConsumingTopicHandler<Data>) handler).consumeTopic(topic, data);
+        } else if (handler instanceof ParameterizedTopicHandler) {
+            ((ParameterizedTopicHandler<Data>) handler).handleTopic(topic, data, TopicParameters.of(topic, levels));
+        } else {
             handler.handleTopic(topic, data);
         }
+    }
+
+    private static <Data> boolean invokeDistinct(TopicSubscription<Data> subscription, String topic, Data data,
+            List<TopicSubscription<Data>> matched) {
+        TopicHandler<Data> handler = subscription.getHandler();
+        if (!(handler instanceof MatchedFiltersTopicHandler)) {
+            return invoke(subscription, topic, data);
+        }
 
-        return handlers.size() > 0;
+        ((MatchedFiltersTopicHandler<Data>) handler).handleTopic(topic, data, matchedFilters(subscription, matched));
+        return false;
     }
 
-    private synchronized void updateHierarchicallyMatchers(String topicFilter,
-            HierarchicallyTopicMatcher<Data> currentMatcher, TopicHandler<Data> handler) {
-        /* subscribe: /abc/def/ghi/#
-         * -> /abc -> /def -> /ghi : through
-         */
-        /* subscribe: /abc/+/def
-         * -> /abc -> / : pattern
-         */
-        /* subscribe: abc/def/+
-         * -> abc -> /def -> /
-         */
+    /**
+     * @return Topic-filters of the handler of the subscription in matched subscriptions
+     */
+    private static <Data> List<String> matchedFilters(TopicSubscription<Data> subscription,
+            List<TopicSubscription<Data>> matched) {
+        List<String> topicFilters = new ArrayList<>(1);
+        int id = subscription.getHandlerId();
+        for (int i = 0; i < matched.size(); i++) {
+            TopicSubscription<Data> s = matched.get(i);
+            if (s == subscription || (id >= 0 && s.getHandlerId() == id)) {
+                topicFilters.add(s.getTopicFilter());
+            }
+        }
+        return topicFilters;
+    }
+
+    /**
+     * Call handlers for a batch of messages.
+     * <p>
+     * Consecutive messages of a same topic are grouped, and handlers are matched once for each group.
+     * All groups are matched with the handlers registered at the beginning of this call, before calling
+     * any handler; changes of handlers during this call are not visible to the batch.
+     * A {@link BatchTopicHandler} receives all messages of a group by one call, and other handlers
+     * receive them one by one. Handlers after a {@link ConsumingTopicHandler} receive only messages
+     * which it has not consumed.
+     * </p>
+     * <p>
+     * Even if a handler throws an exception, other handlers and the rest of the batch are called, and
+     * the first exception is thrown after that. The handler which throws is not called for the rest of
+     * the group, and a {@link ConsumingTopicHandler} which throws does not consume any messages of the group.
+     * </p>
+     * @param messages Pairs of a topic and a message data
+     * @return Number of messages which are passed to least one handler
+     */
+    public int dispatchBatch(@Nonnull List<? extends Map.Entry<String, ? extends Data>> messages) {
+        Objects.requireNonNull(messages);
+
+        TopicMatchCache<Data> cache = _matchCache;
+        // read the generation before the snapshot
+        long generation = (cache != null) ? cache.getGeneration() : 0L;
+        Snapshot<Data> snapshot = _snapshot;
+        DispatchMetrics metrics = _metrics;
+        RetainedMessageStore<Data> retained = _retainedMessages;
+
+        List<BatchGroup<Data>> groups = new ArrayList<>();
+        int size = messages.size();
+        for (int start = 0, end; start < size; start = end) {
+            String topic = messages.get(start).getKey();
+            for (end = start + 1; end < size; end++) {
+                if (!Objects.equals(topic, messages.get(end).getKey())) {
+                    break;
+                }
+            }
+            if (Strings.isNullOrEmpty(topic)) {
+                continue;
+            }
+            if (retained != null) {
+                retained.put(topic, messages.get(end - 1).getValue());
+            }
+            if (!snapshot.mightMatch(topic)) {
+                recordRejected(metrics, end - start);
+                continue;
+            }
+
+            BatchGroup<Data> group = new BatchGroup<>(topic, start, end);
+            long startTime = (metrics != null) ? System.nanoTime() : 0L;
+            if (cache == null) {
+                group.matched = matchSnapshot(snapshot, topic);
+            } else {
+                List<TopicSubscription<Data>> cached = cache.getIfPresent(topic);
+                group.matched = (cached != null) ? cached : matchAndCache(cache, snapshot, generation, topic);
+            }
+            if (metrics != null) {
+                group.matchNanos = System.nanoTime() - startTime;
+            }
+            groups.add(group);
+        }
+        if (cache != null && cache.getGeneration() != generation) {
+            // handlers are changed while matching; cached handlers might be of another snapshot
+            for (BatchGroup<Data> group : groups) {
+                long startTime = (metrics != null) ? System.nanoTime() : 0L;
+                group.matched = matchSnapshot(snapshot, group.topic);
+                if (metrics != null) {
+                    group.matchNanos += System.nanoTime() - startTime;
+                }
+            }
+        }
+
+        Throwable failure = null;
+        int dispatched = 0;
+        for (BatchGroup<Data> group : groups) {
+            if (metrics != null) {
+                metrics.recordMatch(group.matched, group.end - group.start, group.matchNanos);
+            }
+            if (group.matched.isEmpty()) {
+                continue;
+            }
+            List<Data> data = new ArrayList<>(group.end - group.start);
+            for (int i = group.start; i < group.end; i++) {
+                data.add(messages.get(i).getValue());
+            }
+            failure = invokeBatch(group.topic, data, group.matched, metrics, failure);
+            dispatched += group.end - group.start;
+        }
+        if (failure != null) {
+            Throwables.throwIfUnchecked(failure);
+            throw new IllegalStateException(failure);
+        }
+        return dispatched;
+    }
 
-        String[] parts = topicFilter.split("/", -1 /* 値のない部分も省略しない */);
-
-        outside:
-        for (int i = 0; i < parts.length; i++) {
-            if (i == 0 && "".equals(parts[i])) continue;
-            switch (parts[i]) {
-            case "#": // 以降すべてマッチ
-                // 最上階層の場合、/は必須、最上以外の場合は/は任意
-                if (i == 1 && "".equals(parts[0])) {
-                    currentMatcher.appendHandler(newTopicPrefixMatchHandler("/", handler));
-                } else {
-                    currentMatcher.appendHandler(newThroughTopicMatchHandler(handler));
+    /**
+     * Call matched handlers with messages of a same topic.
+     * @param failure The first exception thrown from handlers of earlier groups, or {@code null}
+     * @return The first exception thrown from handlers including {@code failure}, or {@code null}
+     */
+    @Nullable
+    private Throwable invokeBatch(String topic, List<Data> group, List<TopicSubscription<Data>> matched,
+            @Nullable DispatchMetrics metrics, @Nullable Throwable failure) {
+        boolean deduplicate = _deduplicateHandlers;
+        List<TopicSubscription<Data>> distinct = deduplicate ? deduplicate(matched) : matched;
+        long startTime = (metrics != null) ? System.nanoTime() : 0L;
+        long handlerTime = startTime;
+        for (int i = 0; i < distinct.size() && !group.isEmpty(); i++) {
+            TopicSubscription<Data> subscription = distinct.get(i);
+            try {
+                group = invokeBatch(subscription, topic, group, deduplicate ? matched : null);
+            } catch (Throwable t) {
+                if (failure == null) {
+                    failure = t;
                 }
-                break outside; // switchの外側のループを抜ける
-            case "+": // 以降はパターンマッチ
-                StringJoiner joiner = new StringJoiner("/", (i > 0) ? "^/" : "^", "$");
-                for (int j = i; j < parts.length; j++) {
-                    switch (parts[j]) {
-                    case "#": joiner.add(".*"); break;
-                    case "+": joiner.add("[^/]*"); break;
-                    case "" : joiner.add(""); break;
-                    default : joiner.add(Pattern.quote(parts[j])); break;
+            }
+            if (metrics != null) {
+                long endTime = System.nanoTime();
+                metrics.recordHandler(subscription, endTime - handlerTime);
+                handlerTime = endTime;
+            }
+        }
+        if (metrics != null) {
+            metrics.recordHandlers(handlerTime - startTime);
+        }
+        return failure;
+    }
+
+    /**
+     * @param matched All matched subscriptions if handlers are deduplicated, or {@code null}
+     * @return Messages not consumed by the handler
+     */
+    private static <Data> List<Data> invokeBatch(TopicSubscription<Data> subscription, String topic,
+            List<Data> group, @Nullable List<TopicSubscription<Data>> matched) {
+        TopicHandler<Data> handler = subscription.getHandler();
+        if (handler instanceof BatchTopicHandler) {
+            ((BatchTopicHandler<Data>) handler).handleTopicBatch(topic, group);
+        } else if (matched != null && handler instanceof MatchedFiltersTopicHandler) {
+            List<String> topicFilters = matchedFilters(subscription, matched);
+            for (int j = 0; j < group.size(); j++) {
+                ((MatchedFiltersTopicHandler<Data>) handler).handleTopic(topic, group.get(j), topicFilters);
+            }
+        } else if (handler instanceof ConsumingTopicHandler) {
+            // later handlers receive messages not consumed
+            List<Data> remaining = new ArrayList<>(group.size());
+            for (int j = 0; j < group.size(); j++) {
+                if (!((ConsumingTopicHandler<Data>) handler).consumeTopic(topic, group.get(j))) {
+                    remaining.add(group.get(j));
+                }
+            }
+            return remaining;
+        } else if (handler instanceof ParameterizedTopicHandler) {
+            TopicParameters parameters = TopicParameters.of(topic, subscription.getLevels());
+            for (int j = 0; j < group.size(); j++) {
+                ((ParameterizedTopicHandler<Data>) handler).handleTopic(topic, group.get(j), parameters);
+            }
+        } else {
+            for (int j = 0; j < group.size(); j++) {
+                handler.handleTopic(topic, group.get(j));
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Call handlers which is matched topic on the executor for asynchronous dispatch.
+     * <p>
+     * Handlers are called in the order specified by {@link #enableAsyncDispatch(Executor, int, Ordering)}.
+     * Even if a handler throws an exception, other handlers are called for the message.
+     * </p>
+     * @param topic A topic
+     * @param data A message data passing to handlers
+     * @return A future completed with {@code true} when all matched handlers have returned,
+     *         with {@code false} if no handlers are matched, or with the exception thrown
+     *         from a handler or the executor
+     * @throws IllegalStateException if asynchronous dispatch is not enabled
+     */
+    public ListenableFuture<Boolean> dispatchAsync(@Nullable String topic, @Nullable Data data) {
+        AsyncHandlerInvoker<Data> invoker = _asyncInvoker;
+        if (invoker == null) {
+            throw new IllegalStateException("asynchronous dispatch is not enabled");
+        }
+        if (Strings.isNullOrEmpty(topic)) {
+            return Futures.immediateFuture(false);
+        }
+        RetainedMessageStore<Data> retained = _retainedMessages;
+        if (retained != null) {
+            retained.put(topic, data);
+        }
+
+        DispatchMetrics metrics = _metrics;
+        if (!_snapshot.mightMatch(topic)) {
+            recordRejected(metrics, 1);
+            return Futures.immediateFuture(false);
+        }
+        long startTime = (metrics != null) ? System.nanoTime() : 0L;
+        List<TopicSubscription<Data>> handlers;
+        TopicMatchCache<Data> cache = _matchCache;
+        if (cache != null) {
+            handlers = matchCached(cache, topic);
+        } else {
+            handlers = new ArrayList<>();
+            _snapshot.match(topic, handlers);
+        }
+        if (metrics != null) {
+            // handlers are not measured on the executor
+            metrics.recordMatch(handlers, 1, System.nanoTime() - startTime);
+        }
+        if (_deduplicateHandlers) {
+            handlers = deduplicate(handlers);
+        }
+        return invoker.invoke(topic, data, handlers);
+    }
+
+    /**
+     * Enable {@link #dispatchAsync(String, Data)}.
+     * <p>
+     * Handlers are called on the executor, for example a thread pool or
+     * {@code Executors.newVirtualThreadPerTaskExecutor()} on newer JDKs.
+     * Messages are distributed to serial queues ("stripes") by the hash of the topic or the handler,
+     * and each stripe occupies at most one thread of the executor at a time.
+     * The executor is not shut down by this class.
+     * </p>
+     * @param executor An executor for calling handlers
+     * @param stripes Number of serial queues; the upper limit of parallelism
+     * @param ordering Messages to be handled in the dispatched order
+     */
+    public synchronized void enableAsyncDispatch(@Nonnull Executor executor, int stripes,
+            @Nonnull Ordering ordering) {
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(ordering);
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes must be positive: " + stripes);
+        }
+        _asyncInvoker = new AsyncHandlerInvoker<>(executor, stripes, ordering);
+    }
+
+    /**
+     * Disable {@link #dispatchAsync(String, Data)}.
+     * Messages already dispatched are still handled.
+     */
+    public synchronized void disableAsyncDispatch() {
+        _asyncInvoker = null;
+    }
+
+    /**
+     * Collect handlers which is matched topic, without calling them.
+     * <p>
+     * Nothing is allocated except by the collection itself,
+     * so that callers can reuse a collection for each message.
+     * </p>
+     * @param topic A topic
+     * @param handlers A collection which matched handlers are added to
+     * @return {@code true} if matched least one handler, {@code false} otherwise
+     */
+    public boolean collectHandlers(@Nullable CharSequence topic,
+            @Nonnull Collection<? super TopicHandler<Data>> handlers) {
+        Objects.requireNonNull(handlers);
+        if (topic == null || topic.length() == 0) {
+            return false;
+        }
+        if (!_snapshot.mightMatch(topic)) {
+            _prefilterRejectedCount.add(0, 1L);
+            return false;
+        }
+
+        TopicMatchCache<Data> cache = _matchCache;
+        if (cache != null && topic instanceof String) {
+            return addHandlers(matchCached(cache, (String) topic), handlers);
+        }
+
+        ArrayList<TopicSubscription<Data>> buffer = _handlersBuffer.get();
+        if (!buffer.isEmpty()) {
+            buffer = new ArrayList<>();
+        }
+        try {
+            _snapshot.match(topic, buffer);
+            return addHandlers(buffer, handlers);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private static <Data> boolean addHandlers(List<TopicSubscription<Data>> matched,
+            Collection<? super TopicHandler<Data>> handlers) {
+        for (int i = 0; i < matched.size(); i++) {
+            handlers.add(matched.get(i).getHandler());
+        }
+        return !matched.isEmpty();
+    }
+
+    /**
+     * Find subscriptions which receive messages of the topic, without calling handlers.
+     * <p>
+     * Each handler of a shared subscription is returned, though one of them receives a message.
+     * </p>
+     * @param topic A topic
+     * @return Matched subscriptions; empty if the topic is empty
+     */
+    @Nonnull
+    public List<TopicSubscription<Data>> getMatchedSubscriptions(@Nullable CharSequence topic) {
+        List<TopicSubscription<Data>> result = new ArrayList<>();
+        if (topic == null || topic.length() == 0) {
+            return result;
+        }
+        ArrayList<TopicSubscription<Data>> matched = new ArrayList<>();
+        _snapshot.match(topic, matched);
+        SharedSubscriptionGroup.addSubscriptions(matched, result);
+        return result;
+    }
+
+    /**
+     * Find subscriptions of topic-filters which match at least one topic in common with the topic-filter.
+     * <p>
+     * It walks only hierarchies which can match, instead of comparing with all topic-filters.
+     * The same applies to {@link #getCoveringSubscriptions(String)} and {@link #getCoveredSubscriptions(String)}.
+     * They restore the original form after {@link #compile()} for each call.
+     * </p>
+     * @param topicFilter A topic-filter
+     * @return Subscriptions of overlapping topic-filters
+     * @throws IllegalArgumentException if the topic-filter is invalid
+     * @see TopicFilters#overlaps(String, String)
+     */
+    @Nonnull
+    public List<TopicSubscription<Data>> getOverlappingSubscriptions(@Nonnull String topicFilter) {
+        String[] levels = TopicFilters.levelsOf(topicFilter);
+        List<TopicSubscription<Data>> result = new ArrayList<>();
+        _snapshot.getHierarchicallyMatcher().collectOverlapping(levels, 0, result);
+        return result;
+    }
+
+    /**
+     * Find subscriptions of topic-filters which match all topics matched with the topic-filter;
+     * including the same topic-filter.
+     * @param topicFilter A topic-filter
+     * @return Subscriptions of covering topic-filters
+     * @throws IllegalArgumentException if the topic-filter is invalid
+     * @see TopicFilters#covers(String, String)
+     */
+    @Nonnull
+    public List<TopicSubscription<Data>> getCoveringSubscriptions(@Nonnull String topicFilter) {
+        String[] levels = TopicFilters.levelsOf(topicFilter);
+        List<TopicSubscription<Data>> result = new ArrayList<>();
+        _snapshot.getHierarchicallyMatcher().collectCovering(levels, 0, result);
+        return result;
+    }
+
+    /**
+     * Find subscriptions of topic-filters which match only topics matched with the topic-filter;
+     * including the same topic-filter.
+     * @param topicFilter A topic-filter
+     * @return Subscriptions of covered topic-filters
+     * @throws IllegalArgumentException if the topic-filter is invalid
+     * @see TopicFilters#covers(String, String)
+     */
+    @Nonnull
+    public List<TopicSubscription<Data>> getCoveredSubscriptions(@Nonnull String topicFilter) {
+        String[] levels = TopicFilters.levelsOf(topicFilter);
+        List<TopicSubscription<Data>> result = new ArrayList<>();
+        _snapshot.getHierarchicallyMatcher().collectCovered(levels, 0, result);
+        return result;
+    }
+
+    /**
+     * Set the selection of a handler for groups of shared subscriptions.
+     * <p>
+     * It is applied to groups created after that; a group keeps the selection while it has handlers.
+     * The default is {@link SharedSelection#ROUND_ROBIN}.
+     * </p>
+     * @param selection Selection of a handler in a group
+     */
+    public synchronized void setSharedSelection(@Nonnull SharedSelection selection) {
+        _sharedSelection = Objects.requireNonNull(selection);
+    }
+
+    /**
+     * Call each handler at most once for a message, even if matched by more than one topic-filter.
+     * <p>
+     * A handler is identified by {@link Object#equals(Object)}, and called in the order of its
+     * first matched topic-filter. A {@link MatchedFiltersTopicHandler} receives all of its matched
+     * topic-filters from {@link #dispatch(String, Data)} and {@link #dispatchUtf8(byte[], int, int, Data)}.
+     * Handlers are marked in an array by a number given at registration, instead of a set for each message.
+     * Handlers of a shared subscription are not deduplicated with others.
+     * </p>
+     */
+    public synchronized void enableHandlerDeduplication() {
+        _deduplicateHandlers = true;
+    }
+
+    /**
+     * Call a handler for each matched topic-filter; the default.
+     */
+    public synchronized void disableHandlerDeduplication() {
+        _deduplicateHandlers = false;
+    }
+
+    /**
+     * Start keeping the minimal set of topic-filters to subscribe at a broker.
+     * <p>
+     * The set has registered topic-filters which are not covered by another registered topic-filter
+     * (e.g. {@code a/b/+} is not included if {@code a/#} is registered). It is updated
+     * when handlers are changed, and the listener is notified of the differences.
+     * A shared subscription is included by its filter part.
+     * </p>
+     * @param listener A listener of changes of the set
+     * @return The current set; the listener is not notified of it
+     */
+    @Nonnull
+    public synchronized Set<String> enableBrokerSubscriptions(@Nonnull BrokerSubscriptionListener listener) {
+        _brokerSubscriptions = new BrokerSubscriptionTracker<>(Objects.requireNonNull(listener),
+                _snapshot.getHierarchicallyMatcher());
+        return _brokerSubscriptions.getSubscriptions();
+    }
+
+    /**
+     * Stop keeping the set of topic-filters to subscribe at a broker.
+     */
+    public synchronized void disableBrokerSubscriptions() {
+        _brokerSubscriptions = null;
+    }
+
+    /**
+     * @return The minimal set of topic-filters to subscribe at a broker,
+     *         or an empty set if not enabled by {@link #enableBrokerSubscriptions(BrokerSubscriptionListener)}
+     */
+    @Nonnull
+    public synchronized Set<String> getBrokerSubscriptions() {
+        return (_brokerSubscriptions != null)
+                ? _brokerSubscriptions.getSubscriptions() : Collections.<String>emptySet();
+    }
+
+    private void replayRetainedMessages(List<TopicSubscription<Data>> added) {
+        // after a new snapshot is published
+        RetainedMessageStore<Data> retained = _retainedMessages;
+        if (retained == null) {
+            return;
+        }
+        for (TopicSubscription<Data> subscription : added) {
+            if (subscription.getShareGroup() != null) {
+                // not replayed to shared subscriptions, as brokers don't
+                continue;
+            }
+            for (String topic : retained.getTopics(subscription.getLevels())) {
+                // read just before replaying; dispatching reads the snapshot after updating the message
+                RetainedMessageStore.Message<Data> message = retained.getMessage(topic);
+                while (message != null) {
+                    invoke(subscription, topic, message.data);
+                    // updated while replaying; the handler might have received it before the replay
+                    RetainedMessageStore.Message<Data> current = retained.getMessage(topic);
+                    if (current == message) {
+                        break;
                     }
+                    message = current;
                 }
-                Pattern pattern = Pattern.compile(joiner.toString());
-                currentMatcher.appendHandler(newTopicPatternMatchHandler(pattern, handler));
-                break outside;
-            default:
-                String part = (i > 0 ? "/" : "") + parts[i];
-                currentMatcher = currentMatcher.findOrCreateChild(part);
-                // 必ず # or + が指定されたトピックが渡されるため、階層化するだけでいい
-                break;
             }
         }
     }
 
-    private static void validateTopicFilter(String topicFilter) {
-        if ("".equals(topicFilter)) {
-            throw new IllegalArgumentException("invalid topic format: (empty)");
+    private void updateBrokerSubscriptions(List<TopicSubscription<Data>> added,
+            List<TopicSubscription<Data>> removed) {
+        // after a new snapshot is published
+        if (_brokerSubscriptions != null) {
+            _brokerSubscriptions.update(_snapshot.getHierarchicallyMatcher(), added, removed);
         }
-        Matcher m = INVALID_TOPIC_PATTERN.matcher(topicFilter);
-        if (m.find()) {
-            throw new IllegalArgumentException("invalid topic format: " + topicFilter);
+    }
+
+    /**
+     * Start recording metrics of dispatching.
+     * <p>
+     * Metrics are recorded by {@link #dispatch(String, Data)} and {@link #dispatchBatch(List)}.
+     * {@link #dispatchAsync(String, Data)} records only matching, not handlers.
+     * The returned object can be registered to an MBean server as {@link DispatchMetricsMXBean}.
+     * Recording is continued with the same metrics if already enabled.
+     * </p>
+     * @return Metrics to be recorded
+     */
+    @Nonnull
+    public synchronized DispatchMetrics enableMetrics() {
+        if (_metrics == null) {
+            _metrics = new DispatchMetrics();
         }
+        return _metrics;
     }
 
-    /* package */ TopicMatchHandler<Data> newThroughTopicMatchHandler(TopicHandler<Data> handler) {
-        return new ThroughTopicMatchHandler<>(handler);
+    /**
+     * Stop recording metrics of dispatching.
+     */
+    public synchronized void disableMetrics() {
+        _metrics = null;
+    }
+
+    /**
+     * @return Metrics being recorded, or {@code null} if disabled
+     */
+    @Nullable
+    public DispatchMetrics getMetrics() {
+        return _metrics;
     }
 
-    /* package */ TopicMatchHandler<Data> newTopicPrefixMatchHandler(String prefix, TopicHandler<Data> handler) {
-        return new TopicPrefixMatchHandler<>(prefix, handler);
+    /**
+     * Enable the prefilter, which rejects topics before matching.
+     * <p>
+     * Names of the first hierarchies of topic-filters are kept in a small bitmap, rebuilt
+     * on every change of handlers, and a topic whose first hierarchy is not in it is rejected
+     * without looking up the match cache or the tree. It is effective when many topics
+     * don't match any topic-filter. All topics pass while a topic-filter starts with a wildcard.
+     * </p>
+     */
+    public synchronized void enablePrefilter() {
+        if (!_prefilterEnabled) {
+            _prefilterEnabled = true;
+            Snapshot<Data> current = _snapshot;
+            TopicPrefilter prefilter = TopicPrefilter.of(current.getHierarchicallyMatcher());
+            _snapshot = (current.compiledMatcher != null)
+                    ? new Snapshot<>(current.compiledMatcher, prefilter)
+                    : new Snapshot<>(current.hierarchicallyMatcher, prefilter);
+        }
     }
 
-    /* package */ TopicMatchHandler<Data> newTopicPatternMatchHandler(Pattern pattern, TopicHandler<Data> handler) {
-        return new TopicPatternMatchHandler<>(pattern, handler);
+    /**
+     * Disable the prefilter.
+     */
+    public synchronized void disablePrefilter() {
+        if (_prefilterEnabled) {
+            _prefilterEnabled = false;
+            Snapshot<Data> current = _snapshot;
+            _snapshot = (current.compiledMatcher != null)
+                    ? new Snapshot<>(current.compiledMatcher, null)
+                    : new Snapshot<>(current.hierarchicallyMatcher, null);
+        }
+    }
+
+    /**
+     * @return Number of messages rejected by the prefilter, including while metrics are disabled
+     */
+    public long getPrefilterRejectedCount() {
+        return _prefilterRejectedCount.get(0);
+    }
+
+    /**
+     * Start keeping the last message of each dispatched topic, and replaying them to added handlers.
+     * <p>
+     * {@link #addHandler(String, TopicHandler)} and {@link #addHandlers(Iterable)} call the added handler
+     * with the last message of each topic matched with the topic-filter, like retained messages of a broker,
+     * before returning. Topics are found by walking a tree of kept topics, not by comparing all of them.
+     * Messages are kept for all dispatched topics, including ones not matched with any handler,
+     * and must not be modified after dispatched. Least recently updated topics are evicted when the number
+     * of topics exceeds the maximum. Kept messages are discarded if already enabled.
+     * </p>
+     * <p>
+     * A message dispatched while adding a handler can be received by the handler both from dispatching
+     * and replaying. A message is read just before replaying it, and the topic is replayed again if dispatched
+     * while replaying; a newer message dispatched to the handler before the replay is received again after it.
+     * Messages are not replayed to shared subscriptions and by {@link #replaceHandlers(Iterable)}.
+     * </p>
+     * @param maximumTopics Maximum number of topics to be kept
+     */
+    public synchronized void enableRetainedMessages(long maximumTopics) {
+        if (maximumTopics <= 0) {
+            throw new IllegalArgumentException("maximumTopics must be positive: " + maximumTopics);
+        }
+        _retainedMessages = new RetainedMessageStore<>(maximumTopics);
+    }
+
+    /**
+     * Stop keeping last messages, and discard kept messages.
+     */
+    public synchronized void disableRetainedMessages() {
+        _retainedMessages = null;
+    }
+
+    /**
+     * Find kept last messages of topics matched with a topic-filter.
+     * @param topicFilter A topic-filter; the filter part is used for a shared subscription
+     * @return Last messages by topic; empty if disabled
+     * @throws IllegalArgumentException if the topic-filter is invalid
+     */
+    @Nonnull
+    public Map<String, Data> getRetainedMessages(@Nonnull String topicFilter) {
+        String[] levels = TopicFilters.levelsOf(topicFilter);
+        RetainedMessageStore<Data> retained = _retainedMessages;
+        return (retained != null) ? retained.get(levels) : Collections.<String, Data>emptyMap();
+    }
+
+    /**
+     * @return Number of topics of kept last messages; {@code 0} if disabled
+     */
+    public long getRetainedMessageCount() {
+        RetainedMessageStore<Data> retained = _retainedMessages;
+        return (retained != null) ? retained.size() : 0L;
+    }
+
+    /**
+     * Enable the cache of matched handlers by topic.
+     * <p>
+     * It is effective when a bounded set of topics is dispatched repeatedly.
+     * Least recently used topics are evicted when the number of topics exceeds the size.
+     * The cache is cleared if already enabled.
+     * </p>
+     * @param maximumSize Maximum number of topics to be cached
+     */
+    public synchronized void enableMatchCache(long maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        _matchCache = new TopicMatchCache<>(maximumSize);
+    }
+
+    /**
+     * Disable the cache of matched handlers, and discard cached results.
+     */
+    public synchronized void disableMatchCache() {
+        _matchCache = null;
+    }
+
+    /**
+     * @return Statistics (hit count, miss count, etc.) of the cache of matched handlers,
+     *         or {@code null} if the cache is disabled
+     */
+    @Nullable
+    public CacheStats getMatchCacheStats() {
+        TopicMatchCache<Data> cache = _matchCache;
+        return (cache != null) ? cache.stats() : null;
+    }
+
+    /**
+     * Pack current handlers into a compact form for matching.
+     * <p>
+     * It reduces memory and time for matching with a large set of topic-filters.
+     * The compact form is used until the next {@link #addHandler(String, TopicHandler)} or
+     * {@link #removeHandler(String, TopicHandler)}, which restores the original form
+     * and invalidates the compact form.
+     * </p>
+     */
+    public synchronized void compile() {
+        Snapshot<Data> current = _snapshot;
+        if (current.compiledMatcher == null) {
+            _snapshot = new Snapshot<>(CompiledTopicMatcher.compile(current.hierarchicallyMatcher),
+                    current.prefilter);
+        }
+    }
+
+    /**
+     * Estimate heap usage of registered handlers.
+     * <p>
+     * It walks all hierarchies, so should not be called frequently with a large set of topic-filters.
+     * </p>
+     * @return A report of the current form; packed by {@link #compile()} or not
+     */
+    @Nonnull
+    public MemoryReport getMemoryReport() {
+        Snapshot<Data> snapshot = _snapshot;
+        MemoryReport.Builder report = new MemoryReport.Builder();
+        snapshot.getHierarchicallyMatcher().report(report);
+        if (snapshot.compiledMatcher != null) {
+            report.setCompiledStructureBytes(snapshot.compiledMatcher.estimateBytes());
+        }
+        return report.build(snapshot.compiledMatcher != null);
+    }
+
+    /**
+     * @return {@code true} if handlers are packed by {@link #compile()} and not changed after that
+     */
+    public boolean isCompiled() {
+        return _snapshot.compiledMatcher != null;
+    }
+
+    private List<TopicSubscription<Data>> match(CharSequence topic, ArrayList<TopicSubscription<Data>> buffer) {
+        TopicMatchCache<Data> cache = _matchCache;
+        if (cache != null) {
+            // cached by a string
+            return matchCached(cache, topic.toString());
+        }
+        _snapshot.match(topic, buffer);
+        return buffer;
+    }
+
+    private List<TopicSubscription<Data>> matchCached(TopicMatchCache<Data> cache, String topic) {
+        List<TopicSubscription<Data>> handlers = cache.getIfPresent(topic);
+        if (handlers == null) {
+            // read the generation before the snapshot
+            long generation = cache.getGeneration();
+            handlers = matchAndCache(cache, _snapshot, generation, topic);
+        }
+        return handlers;
+    }
+
+    /**
+     * @param generation The generation of the cache read before the snapshot
+     */
+    private static <Data> List<TopicSubscription<Data>> matchAndCache(TopicMatchCache<Data> cache,
+            Snapshot<Data> snapshot, long generation, String topic) {
+        List<TopicSubscription<Data>> handlers = ImmutableList.copyOf(matchSnapshot(snapshot, topic));
+        cache.put(topic, handlers, generation);
+        return handlers;
+    }
+
+    private static <Data> List<TopicSubscription<Data>> matchSnapshot(Snapshot<Data> snapshot, String topic) {
+        ArrayList<TopicSubscription<Data>> matched = new ArrayList<>();
+        snapshot.match(topic, matched);
+        return matched;
+    }
+
+    private void invalidateMatchCache() {
+        // after a new snapshot is published
+        TopicMatchCache<Data> cache = _matchCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    private void invalidateMatchCache(String[] levels) {
+        // after a new snapshot is published
+        TopicMatchCache<Data> cache = _matchCache;
+        if (cache != null) {
+            cache.invalidate(levels);
+        }
+    }
+
+    private TopicSubscription<Data> newSubscription(String topicFilter, TopicHandler<Data> handler, int priority) {
+        topicFilter = Objects.requireNonNull(topicFilter);
+        handler = Objects.requireNonNull(handler);
+
+        String[] levels = TopicFilters.levelsOf(topicFilter);
+        int filterStart = TopicFilters.filterStart(topicFilter);
+        if (filterStart == 0) {
+            return new TopicSubscription<>(topicFilter, levels, handler, priority);
+        }
+        String group = topicFilter.substring(SharedSubscriptionGroup.PREFIX.length(), filterStart - 1);
+        return new TopicSubscription<>(topicFilter, levels, handler, group, _sharedSelection, priority);
+    }
+
+    /**
+     * @return A snapshot of the tree, with a prefilter if enabled
+     */
+    private Snapshot<Data> newSnapshot(HierarchicallyTopicMatcher<Data> tree) {
+        return new Snapshot<>(tree, _prefilterEnabled ? TopicPrefilter.of(tree) : null);
+    }
+
+    /**
+     * @return A copy of the subscription which has the number of the handler
+     */
+    private TopicSubscription<Data> register(TopicSubscription<Data> subscription) {
+        return subscription.withHandlerId(_handlerIds.acquire(subscription.getHandler()));
+    }
+
+    /**
+     * Validate and split all topic-filters before changing anything.
+     */
+    private List<TopicSubscription<Data>> newSubscriptions(
+            Iterable<? extends Map.Entry<String, ? extends TopicHandler<Data>>> subscriptions) {
+        Objects.requireNonNull(subscriptions);
+        List<TopicSubscription<Data>> list = new ArrayList<>();
+        for (Map.Entry<String, ? extends TopicHandler<Data>> subscription : subscriptions) {
+            list.add(newSubscription(subscription.getKey(), subscription.getValue(), 0));
+        }
+        return list;
+    }
+
+    /**
+     * Consecutive messages of a same topic in a batch.
+     */
+    private static final class BatchGroup<Data> {
+        final String topic;
+
+        /** Index of the first message in the batch */
+        final int start;
+
+        /** Index after the last message in the batch */
+        final int end;
+
+        /** Matched subscriptions */
+        List<TopicSubscription<Data>> matched;
+
+        /** Time for matching, if measured */
+        long matchNanos;
+
+        BatchGroup(String topic, int start, int end) {
+            this.topic = topic;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * A change of a subscription waiting to be applied.
+     */
+    private static final class PendingChange<Data> {
+        /** A subscription to be added or removed */
+        final TopicSubscription<Data> subscription;
+
+        /** {@code true} to add, {@code false} to remove */
+        final boolean adding;
+
+        /** {@code true} to remove the same instance of the subscription */
+        final boolean sameInstance;
+
+        /** The added subscription, or the removed one; {@code null} if not found. Guarded by the dispatcher */
+        TopicSubscription<Data> result;
+
+        /** {@code true} if applied. Guarded by the dispatcher */
+        boolean applied;
+
+        /** A failure to be thrown in the thread which requested the change. Guarded by the dispatcher */
+        Throwable failure;
+
+        PendingChange(TopicSubscription<Data> subscription, boolean adding, boolean sameInstance) {
+            this.subscription = subscription;
+            this.adding = adding;
+            this.sameInstance = sameInstance;
+        }
+    }
+
+    /**
+     * Immutable set of handlers which is read by {@link TopicDispatcher#dispatch(String, Data)}.
+     */
+    private static final class Snapshot<Data> {
+        /** Handlers for exact and pattern(wildcard) match; {@code null} if compiled */
+        final HierarchicallyTopicMatcher<Data> hierarchicallyMatcher;
+
+        /** Compiled handlers; {@code null} if not compiled */
+        final CompiledTopicMatcher<Data> compiledMatcher;
+
+        /** Prefilter of topics; {@code null} if disabled */
+        final TopicPrefilter prefilter;
+
+        Snapshot(HierarchicallyTopicMatcher<Data> hierarchicallyMatcher, @Nullable TopicPrefilter prefilter) {
+            this.hierarchicallyMatcher = hierarchicallyMatcher;
+            this.compiledMatcher = null;
+            this.prefilter = prefilter;
+        }
+
+        Snapshot(CompiledTopicMatcher<Data> compiledMatcher, @Nullable TopicPrefilter prefilter) {
+            this.hierarchicallyMatcher = null;
+            this.compiledMatcher = compiledMatcher;
+            this.prefilter = prefilter;
+        }
+
+        /** @return {@code false} if the topic is rejected by the prefilter */
+        boolean mightMatch(CharSequence topic) {
+            return prefilter == null || prefilter.mightMatch(topic);
+        }
+
+        boolean match(CharSequence topic, List<TopicSubscription<Data>> handlers) {
+            int from = handlers.size();
+            boolean found = (compiledMatcher != null) ? compiledMatcher.match(topic, handlers)
+                    : hierarchicallyMatcher.matchHierarchically(topic, 0, handlers);
+            PriorityOrder.merge(handlers, from);
+            return found;
+        }
+
+        /** @return A tree for changing handlers */
+        HierarchicallyTopicMatcher<Data> getHierarchicallyMatcher() {
+            return (hierarchicallyMatcher != null) ? hierarchicallyMatcher : compiledMatcher.decompile();
+        }
     }
 }
@@ -0,0 +1,198 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Utilities for comparing MQTT-subscribe topic-filters.
+ *
+ * <p>
+ * A topic-filter of a shared subscription ({@code $share/{group}/{filter}}) is compared by
+ * the filter part.
+ * </p>
+ */
+public final class TopicFilters {
+
+    /** Maximum bytes of a topic-filter in UTF-8 */
+    private static final int MAX_LENGTH = 65535;
+
+    /**
+     * Names of hierarchies shared by all dispatchers; a name used by many topic-filters
+     * (e.g. {@code telemetry} of each device) is held by one string. Unused names are collected.
+     */
+    private static final Interner<String> LEVEL_NAMES = Interners.newWeakInterner();
+
+    private TopicFilters() {
+    }
+
+    /**
+     * Test whether two topic-filters match at least one topic in common.
+     * @param topicFilter1 A topic-filter
+     * @param topicFilter2 A topic-filter
+     * @return {@code true} if overlapping
+     * @throws IllegalArgumentException if a topic-filter is invalid
+     */
+    public static boolean overlaps(@Nonnull String topicFilter1, @Nonnull String topicFilter2) {
+        String[] levels1 = levelsOf(topicFilter1);
+        String[] levels2 = levelsOf(topicFilter2);
+        for (int i = 0; ; i++) {
+            boolean end1 = (i == levels1.length);
+            boolean end2 = (i == levels2.length);
+            // '#' matches also the parent hierarchy
+            if ((!end1 && "#".equals(levels1[i])) || (!end2 && "#".equals(levels2[i]))) {
+                return true;
+            }
+            if (end1 || end2) {
+                return end1 && end2;
+            }
+            if (!"+".equals(levels1[i]) && !"+".equals(levels2[i]) && !levels1[i].equals(levels2[i])) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Test whether a topic-filter matches all topics matched with another topic-filter.
+     * @param topicFilter A topic-filter
+     * @param coveredFilter A topic-filter to be covered
+     * @return {@code true} if {@code topicFilter} covers {@code coveredFilter}; also for equal topic-filters
+     * @throws IllegalArgumentException if a topic-filter is invalid
+     */
+    public static boolean covers(@Nonnull String topicFilter, @Nonnull String coveredFilter) {
+        String[] levels = levelsOf(topicFilter);
+        String[] covered = levelsOf(coveredFilter);
+        for (int i = 0; ; i++) {
+            if (i == levels.length) {
+                return i == covered.length;
+            }
+            if ("#".equals(levels[i])) {
+                return true;
+            }
+            if (i == covered.length || "#".equals(covered[i])) {
+                return false;
+            }
+            if (!"+".equals(levels[i]) && !levels[i].equals(covered[i])) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Validate and split a topic-filter in one pass.
+     * <p>
+     * A topic-filter is invalid if it is empty, longer than 65535 bytes in UTF-8, or has a null character
+     * or an unpaired surrogate; or if '+' or '#' is not a whole hierarchy, or '#' is not the last hierarchy.
+     * A shared subscription needs a group without wildcards and a non-empty filter part.
+     * </p>
+     * @param topicFilter A topic-filter
+     * @return Interned hierarchies of the topic-filter; of the filter part for a shared subscription
+     * @throws IllegalArgumentException if the topic-filter is invalid
+     */
+    /* package */ static String[] levelsOf(String topicFilter) {
+        Objects.requireNonNull(topicFilter);
+        int length = topicFilter.length();
+        if (length == 0) {
+            throw new IllegalArgumentException("invalid topic format: (empty)");
+        }
+
+        // positions of '/', and of the first wildcard to check the group of a shared subscription
+        int[] separators = new int[8];
+        int separatorCount = 0;
+        int firstWildcard = length;
+        int levelStart = 0;
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = topicFilter.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+                if (c == '/') {
+                    if (separatorCount == separators.length) {
+                        separators = Arrays.copyOf(separators, separatorCount * 2);
+                    }
+                    separators[separatorCount++] = i;
+                    levelStart = i + 1;
+                } else if (c == '+') {
+                    if (i != levelStart || (i + 1 < length && topicFilter.charAt(i + 1) != '/')) {
+                        throw invalid(topicFilter);
+                    }
+                    firstWildcard = Math.min(firstWildcard, i);
+                } else if (c == '#') {
+                    if (i != levelStart || i + 1 < length) {
+                        throw invalid(topicFilter);
+                    }
+                    firstWildcard = Math.min(firstWildcard, i);
+                } else if (c == '\0') {
+                    throw invalid(topicFilter);
+                }
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(topicFilter.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                throw invalid(topicFilter);
+            } else {
+                bytes += 3;
+            }
+        }
+        if (bytes > MAX_LENGTH) {
+            throw invalid(topicFilter);
+        }
+
+        int firstLevel = 0;
+        if (topicFilter.startsWith(SharedSubscriptionGroup.PREFIX)) {
+            // $share/{group}/{filter}
+            if (separatorCount < 2 || separators[1] == separators[0] + 1 || firstWildcard < separators[1]
+                    || separators[1] == length - 1) {
+                throw invalid(topicFilter);
+            }
+            firstLevel = 2;
+        }
+
+        String[] levels = new String[separatorCount + 1 - firstLevel];
+        for (int level = firstLevel; level <= separatorCount; level++) {
+            int begin = (level == 0) ? 0 : separators[level - 1] + 1;
+            int end = (level == separatorCount) ? length : separators[level];
+            levels[level - firstLevel] = levelName(topicFilter, begin, end);
+        }
+        return levels;
+    }
+
+    private static String levelName(String topicFilter, int begin, int end) {
+        // wildcards and empty names don't need the interner
+        if (begin == end) {
+            return "";
+        }
+        if (end - begin == 1) {
+            char c = topicFilter.charAt(begin);
+            if (c == '+') {
+                return "+";
+            }
+            if (c == '#') {
+                return "#";
+            }
+        }
+        return LEVEL_NAMES.intern(topicFilter.substring(begin, end));
+    }
+
+    /**
+     * @param topicFilter A valid topic-filter
+     * @return Start position of the filter part; {@code 0} if not a shared subscription
+     */
+    /* package */ static int filterStart(String topicFilter) {
+        if (!topicFilter.startsWith(SharedSubscriptionGroup.PREFIX)) {
+            return 0;
+        }
+        return topicFilter.indexOf('/', SharedSubscriptionGroup.PREFIX.length()) + 1;
+    }
+
+    private static IllegalArgumentException invalid(String topicFilter) {
+        return new IllegalArgumentException("invalid topic format: " + topicFilter);
+    }
+}
@@ -0,0 +1,251 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An immutable map from a topic level name to a value.
+ *
+ * <p>
+ * A value can be looked up by a range of a topic without creating a substring.
+ * Hash codes are compatible with {@link String#hashCode()}.
+ * Adding or removing an entry creates a new map.
+ * </p>
+ * <p>
+ * The layout depends on the number of entries. A small map has arrays of the exact size
+ * which are searched linearly by hash codes, and a larger map is an open-addressing hash table.
+ * Most hierarchies have one or a few children, so they don't have empty slots.
+ * </p>
+ * @param <V> Value type
+ */
+@Immutable
+/* package */ final class TopicLevelMap<V> {
+
+    private static final TopicLevelMap<Object> EMPTY = new TopicLevelMap<>(new String[0], new int[0], new Object[0], 0);
+
+    /** Maximum number of entries of a map searched linearly */
+    private static final int LINEAR_MAX_SIZE = 8;
+
+    /** Keys; {@code null} if the slot is empty. All slots are used if searched linearly */
+    private final String[] _keys;
+
+    /** Hash codes of keys */
+    private final int[] _hashes;
+
+    /** Values */
+    private final Object[] _values;
+
+    /** Number of entries */
+    private final int _size;
+
+    private TopicLevelMap(String[] keys, int[] hashes, Object[] values, int size) {
+        _keys = keys;
+        _hashes = hashes;
+        _values = values;
+        _size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    /* package */ static <V> TopicLevelMap<V> empty() {
+        return (TopicLevelMap<V>) EMPTY;
+    }
+
+    /**
+     * Create a map which has all entries of the specified map.
+     * @param entries Entries
+     * @return A new map
+     */
+    /* package */ static <V> TopicLevelMap<V> copyOf(Map<String, ? extends V> entries) {
+        if (entries.isEmpty()) {
+            return empty();
+        }
+        TopicLevelMap<V> map = TopicLevelMap.<V>empty().rehash(entries.size(), null);
+        for (Map.Entry<String, ? extends V> entry : entries.entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+
+    /* package */ int size() {
+        return _size;
+    }
+
+    /* package */ boolean isEmpty() {
+        return _size == 0;
+    }
+
+    /**
+     * Number of slots; for iterating entries with {@link #keyAt(int)} and {@link #valueAt(int)}.
+     */
+    /* package */ int slots() {
+        return _keys.length;
+    }
+
+    /** @return A key of the slot, or {@code null} if the slot is empty */
+    /* package */ @Nullable
+    String keyAt(int slot) {
+        return _keys[slot];
+    }
+
+    /** @return A value of the slot, or {@code null} if the slot is empty */
+    /* package */ @Nullable
+    V valueAt(int slot) {
+        @SuppressWarnings("unchecked")
+        V value = (V) _values[slot];
+        return value;
+    }
+
+    /**
+     * Get a value by a topic level.
+     * @param topic A topic
+     * @param start Start position of the level (inclusive)
+     * @param end End position of the level (exclusive)
+     * @return A value, or {@code null} if not found
+     */
+    /* package */ @Nullable
+    V get(CharSequence topic, int start, int end) {
+        if (_size == 0) {
+            return null;
+        }
+        int hash = hash(topic, start, end);
+        int length = end - start;
+        if (isLinear()) {
+            for (int i = 0; i < _size; i++) {
+                String key = _keys[i];
+                if (_hashes[i] == hash && key.length() == length && regionEquals(key, topic, start)) {
+                    @SuppressWarnings("unchecked")
+                    V value = (V) _values[i];
+                    return value;
+                }
+            }
+            return null;
+        }
+        int mask = _keys.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            String key = _keys[i];
+            if (key == null) {
+                return null;
+            }
+            if (_hashes[i] == hash && key.length() == length && regionEquals(key, topic, start)) {
+                @SuppressWarnings("unchecked")
+                V value = (V) _values[i];
+                return value;
+            }
+        }
+    }
+
+    /* package */ @Nullable
+    V get(String level) {
+        return get(level, 0, level.length());
+    }
+
+    /**
+     * Create a map which has the entry.
+     * @param level A topic level
+     * @param value A value
+     * @return A new map
+     */
+    /* package */
+    TopicLevelMap<V> with(String level, V value) {
+        boolean exists = (get(level) != null);
+        TopicLevelMap<V> map = rehash(exists ? _size : _size + 1, null);
+        map.put(level, value);
+        return map;
+    }
+
+    /**
+     * Create a map which does not have the entry.
+     * @param level A topic level
+     * @return A new map, or {@code this} if the level is not found
+     */
+    /* package */
+    TopicLevelMap<V> without(String level) {
+        if (get(level) == null) {
+            return this;
+        }
+        if (_size == 1) {
+            return empty();
+        }
+        return rehash(_size - 1, level);
+    }
+
+    private TopicLevelMap<V> rehash(int size, @Nullable String excluded) {
+        int capacity = size;
+        if (size > LINEAR_MAX_SIZE) {
+            capacity = 2;
+            while (capacity < size * 2) {
+                capacity <<= 1;
+            }
+        }
+        TopicLevelMap<V> map = new TopicLevelMap<>(new String[capacity], new int[capacity], new Object[capacity], size);
+        for (int i = 0; i < _keys.length; i++) {
+            if (_keys[i] != null && !_keys[i].equals(excluded)) {
+                @SuppressWarnings("unchecked")
+                V value = (V) _values[i];
+                map.put(_keys[i], value);
+            }
+        }
+        return map;
+    }
+
+    /** Put an entry; only for a map under construction */
+    private void put(String level, V value) {
+        int hash = level.hashCode();
+        int i;
+        if (isLinear()) {
+            i = 0;
+            while (_keys[i] != null && !_keys[i].equals(level)) {
+                i++;
+            }
+        } else {
+            int mask = _keys.length - 1;
+            i = spread(hash) & mask;
+            while (_keys[i] != null && !_keys[i].equals(level)) {
+                i = (i + 1) & mask;
+            }
+        }
+        _keys[i] = level;
+        _hashes[i] = hash;
+        _values[i] = value;
+    }
+
+    /** @return {@code true} if arrays have the exact size and are searched linearly */
+    private boolean isLinear() {
+        return _keys.length == _size;
+    }
+
+    /** @return Estimated bytes of this map, excluding keys and values */
+    /* package */ long estimateBytes() {
+        if (this == EMPTY) {
+            // shared
+            return 0L;
+        }
+        // keys, hash codes and values
+        return MemoryReport.objectBytes(3, 1) + MemoryReport.arrayBytes(_keys.length, 4) * 3;
+    }
+
+    /** @return A hash code of the range, same as {@link String#hashCode()} of the substring */
+    /* package */ static int hash(CharSequence topic, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + topic.charAt(i);
+        }
+        return h;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /** @return {@code true} if the topic has the key at the start position */
+    /* package */ static boolean regionEquals(String key, CharSequence topic, int start) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != topic.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
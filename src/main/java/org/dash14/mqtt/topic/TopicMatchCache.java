@@ -0,0 +1,114 @@
+package org.dash14.mqtt.topic;
+
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A bounded cache of matched subscriptions by topic.
+ *
+ * <p>
+ * A cached result becomes stale when handlers are changed. A change increments the generation
+ * and then removes affected entries; a result is put with the generation read before matching,
+ * and removed again if the generation has been changed meanwhile.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+@ThreadSafe
+/* package */ final class TopicMatchCache<Data> {
+
+    private final Cache<String, List<TopicSubscription<Data>>> _cache;
+
+    /** Incremented on every change of handlers */
+    private volatile long _generation;
+
+    /* package */ TopicMatchCache(long maximumSize) {
+        _cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return Current generation; must be read before matching a result to {@link #put}
+     */
+    /* package */ long getGeneration() {
+        return _generation;
+    }
+
+    /* package */ @Nullable
+    List<TopicSubscription<Data>> getIfPresent(String topic) {
+        return _cache.getIfPresent(topic);
+    }
+
+    /**
+     * Put a result.
+     * @param topic A topic
+     * @param handlers Matched subscriptions; must not be modified after that
+     * @param generation The generation read before matching
+     */
+    /* package */ void put(String topic, List<TopicSubscription<Data>> handlers, long generation) {
+        _cache.put(topic, handlers);
+        if (_generation != generation) {
+            // handlers might be changed while matching
+            _cache.invalidate(topic);
+        }
+    }
+
+    /**
+     * Remove results which might be changed by adding or removing a topic-filter.
+     * It must be called after the change is visible to matching.
+     * @param levels Hierarchies of a topic filter
+     */
+    /* package */ void invalidate(String[] levels) {
+        _generation++;
+
+        int wildcard = 0;
+        while (wildcard < levels.length && !"+".equals(levels[wildcard]) && !"#".equals(levels[wildcard])) {
+            wildcard++;
+        }
+        if (wildcard == levels.length) {
+            // not has wildcard
+            _cache.invalidate(join(levels, levels.length));
+        } else if (wildcard == 0) {
+            _cache.invalidateAll();
+        } else {
+            // topics under the levels before the first wildcard
+            String prefix = join(levels, wildcard);
+            Iterator<String> topics = _cache.asMap().keySet().iterator();
+            while (topics.hasNext()) {
+                String topic = topics.next();
+                if (topic.startsWith(prefix)
+                        && (topic.length() == prefix.length() || topic.charAt(prefix.length()) == '/')) {
+                    topics.remove();
+                }
+            }
+        }
+    }
+
+    /* package */ void invalidateAll() {
+        _generation++;
+        _cache.invalidateAll();
+    }
+
+    /* package */ CacheStats stats() {
+        return _cache.stats();
+    }
+
+    private static String join(String[] levels, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append('/');
+            }
+            builder.append(levels[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,127 @@
+package org.dash14.mqtt.topic;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Parts of a topic matched with wildcards of a topic-filter, passed to {@link ParameterizedTopicHandler}.
+ *
+ * <p>
+ * Each '+' captures a hierarchy, and '#' captures the rest of the topic; an empty string if '#' matches
+ * the parent hierarchy ({@code "a/#"} matches {@code "a"}). Positions are found by one scan of the topic,
+ * and a string is created only when {@link #get(int)} is called.
+ * </p>
+ */
+@Immutable
+public final class TopicParameters {
+
+    private static final int[] NO_OFFSETS = new int[0];
+
+    private final String _topic;
+
+    /** Start and end positions of each parameter */
+    private final int[] _offsets;
+
+    private TopicParameters(String topic, int[] offsets) {
+        _topic = topic;
+        _offsets = offsets;
+    }
+
+    /**
+     * @param topic A topic matched with the topic-filter
+     * @param levels Hierarchies of the topic-filter
+     * @return Parameters of the topic
+     */
+    /* package */ static TopicParameters of(String topic, String[] levels) {
+        int count = 0;
+        for (String level : levels) {
+            if ("+".equals(level) || "#".equals(level)) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return new TopicParameters(topic, NO_OFFSETS);
+        }
+
+        int[] offsets = new int[count * 2];
+        int length = topic.length();
+        int start = 0;
+        int n = 0;
+        for (int i = 0; i < levels.length && n < offsets.length; i++) {
+            String level = levels[i];
+            if ("#".equals(level)) {
+                offsets[n++] = Math.min(start, length);
+                offsets[n++] = length;
+                break;
+            }
+            int end = topic.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if ("+".equals(level)) {
+                offsets[n++] = start;
+                offsets[n++] = end;
+            }
+            start = end + 1;
+        }
+        return new TopicParameters(topic, offsets);
+    }
+
+    /** @return The topic */
+    @Nonnull
+    public String getTopic() {
+        return _topic;
+    }
+
+    /** @return Number of wildcards of the topic-filter */
+    public int size() {
+        return _offsets.length / 2;
+    }
+
+    /**
+     * @param index Index of a wildcard in the topic-filter
+     * @return The part of the topic matched with the wildcard
+     * @throws IndexOutOfBoundsException if the index is out of range
+     */
+    @Nonnull
+    public String get(int index) {
+        return _topic.substring(start(index), end(index));
+    }
+
+    /**
+     * @param index Index of a wildcard in the topic-filter
+     * @return Start position of the part in the topic
+     * @throws IndexOutOfBoundsException if the index is out of range
+     */
+    public int start(int index) {
+        return _offsets[checkIndex(index) * 2];
+    }
+
+    /**
+     * @param index Index of a wildcard in the topic-filter
+     * @return End position (exclusive) of the part in the topic
+     * @throws IndexOutOfBoundsException if the index is out of range
+     */
+    public int end(int index) {
+        return _offsets[checkIndex(index) * 2 + 1];
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+        }
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size(); i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(_topic, start(i), end(i));
+        }
+        return builder.append(']').toString();
+    }
+}
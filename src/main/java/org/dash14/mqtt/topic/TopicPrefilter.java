@@ -0,0 +1,97 @@
+package org.dash14.mqtt.topic;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A filter which rejects topics which can't match any topic-filter, before matching.
+ *
+ * <p>
+ * Names of the first hierarchies of topic-filters are set to a bitmap by two hash functions,
+ * like a Bloom filter. A topic is rejected if a bit for its first hierarchy is not set.
+ * Some topics which can't match pass the filter, but a topic which can match always passes.
+ * If a topic-filter starts with a wildcard, all topics pass.
+ * </p>
+ */
+@Immutable
+/* package */ final class TopicPrefilter {
+
+    private static final TopicPrefilter ACCEPT_ALL = new TopicPrefilter(null);
+
+    /** Bits per name; about 1.5% of topics which can't match pass the filter */
+    private static final int BITS_PER_NAME = 16;
+
+    private static final int MAX_BITS = 1 << 23;
+
+    /** Bitmap; {@code null} to accept all topics */
+    private final long[] _bits;
+
+    private TopicPrefilter(long[] bits) {
+        _bits = bits;
+    }
+
+    /**
+     * @param root The root of a tree
+     * @return A filter for the tree
+     */
+    /* package */ static <Data> TopicPrefilter of(HierarchicallyTopicMatcher<Data> root) {
+        if (root.getSingleLevelChild() != null || !root.getMultiLevelHandlers().isEmpty()) {
+            return ACCEPT_ALL;
+        }
+        TopicLevelMap<HierarchicallyTopicMatcher<Data>> children = root.getChildren();
+        int bitCount = 64;
+        while (bitCount < children.size() * BITS_PER_NAME && bitCount < MAX_BITS) {
+            bitCount <<= 1;
+        }
+        long[] bits = new long[bitCount >>> 6];
+        int mask = bitCount - 1;
+        for (int slot = 0; slot < children.slots(); slot++) {
+            String name = children.keyAt(slot);
+            if (name != null) {
+                int hash = name.hashCode();
+                set(bits, firstBit(hash) & mask);
+                set(bits, secondBit(hash) & mask);
+            }
+        }
+        return new TopicPrefilter(bits);
+    }
+
+    /**
+     * @param topic A non-empty topic
+     * @return {@code false} if the topic can't match any topic-filter
+     */
+    /* package */ boolean mightMatch(CharSequence topic) {
+        long[] bits = _bits;
+        if (bits == null) {
+            return true;
+        }
+        // same as String#hashCode() of the first hierarchy
+        int hash = 0;
+        int length = topic.length();
+        for (int i = 0; i < length; i++) {
+            char c = topic.charAt(i);
+            if (c == '/') {
+                break;
+            }
+            hash = 31 * hash + c;
+        }
+        int mask = (bits.length << 6) - 1;
+        return isSet(bits, firstBit(hash) & mask) && isSet(bits, secondBit(hash) & mask);
+    }
+
+    private static int firstBit(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int secondBit(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static boolean isSet(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+}
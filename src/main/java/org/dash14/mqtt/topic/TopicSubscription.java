@@ -0,0 +1,119 @@
+package org.dash14.mqtt.topic;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A pair of a topic-filter and a handler registered to {@link TopicDispatcher}.
+ *
+ * <p>
+ * It is returned by {@link TopicDispatcher#addHandler(String, TopicHandler)} as a handle,
+ * and {@link TopicDispatcher#removeSubscription(TopicSubscription)} removes exactly this pair
+ * without parsing the topic-filter again, even if the same pair is registered more than once.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+@Immutable
+public final class TopicSubscription<Data> {
+
+    private final String _topicFilter;
+
+    /** Hierarchies of {@link #_topicFilter} */
+    private final String[] _levels;
+
+    private final TopicHandler<Data> _handler;
+
+    /** Group name of a shared subscription; {@code null} if not shared */
+    private final String _shareGroup;
+
+    /** Selection of a handler in the group; {@code null} if not shared */
+    private final TopicDispatcher.SharedSelection _shareSelection;
+
+    /** Handlers of higher priorities are called first */
+    private final int _priority;
+
+    /** Number of the handler given by {@link HandlerIds}; {@code -1} if not registered */
+    private final int _handlerId;
+
+    /* package */ TopicSubscription(String topicFilter, String[] levels, TopicHandler<Data> handler, int priority) {
+        this(topicFilter, levels, handler, null, null, priority);
+    }
+
+    /* package */ TopicSubscription(String topicFilter, String[] levels, TopicHandler<Data> handler,
+            @Nullable String shareGroup, @Nullable TopicDispatcher.SharedSelection shareSelection, int priority) {
+        this(topicFilter, levels, handler, shareGroup, shareSelection, priority, -1);
+    }
+
+    private TopicSubscription(String topicFilter, String[] levels, TopicHandler<Data> handler,
+            @Nullable String shareGroup, @Nullable TopicDispatcher.SharedSelection shareSelection,
+            int priority, int handlerId) {
+        _topicFilter = topicFilter;
+        _levels = levels;
+        _handler = handler;
+        _shareGroup = shareGroup;
+        _shareSelection = shareSelection;
+        _priority = priority;
+        _handlerId = handlerId;
+    }
+
+    /**
+     * @param handlerId Number of the handler given by {@link HandlerIds}
+     * @return A copy which has the number of the handler
+     */
+    /* package */ TopicSubscription<Data> withHandlerId(int handlerId) {
+        return new TopicSubscription<>(_topicFilter, _levels, _handler, _shareGroup, _shareSelection,
+                _priority, handlerId);
+    }
+
+    /** @return Number of the handler given by {@link HandlerIds}, or {@code -1} if not registered */
+    /* package */ int getHandlerId() {
+        return _handlerId;
+    }
+
+    /** @return The topic-filter; including the prefix of a shared subscription */
+    @Nonnull
+    public String getTopicFilter() {
+        return _topicFilter;
+    }
+
+    /** @return The handler */
+    @Nonnull
+    public TopicHandler<Data> getHandler() {
+        return _handler;
+    }
+
+    /**
+     * @return The priority given by {@link TopicDispatcher#addHandler(String, TopicHandler, int)};
+     *         {@code 0} by default
+     */
+    public int getPriority() {
+        return _priority;
+    }
+
+    /** @return Group name if a shared subscription ({@code $share/{group}/{filter}}), or {@code null} */
+    @Nullable
+    public String getShareGroup() {
+        return _shareGroup;
+    }
+
+    /* package */ TopicDispatcher.SharedSelection getShareSelection() {
+        return _shareSelection;
+    }
+
+    /** @return The topic-filter without the prefix of a shared subscription */
+    /* package */ String getFilter() {
+        return (_shareGroup == null) ? _topicFilter
+                : _topicFilter.substring(SharedSubscriptionGroup.PREFIX.length() + _shareGroup.length() + 1);
+    }
+
+    /** @return Hierarchies of the filter without the prefix of a shared subscription; must not be modified */
+    /* package */ String[] getLevels() {
+        return _levels;
+    }
+
+    @Override
+    public String toString() {
+        return _topicFilter + "=" + _handler;
+    }
+}
@@ -0,0 +1,226 @@
+package org.dash14.mqtt.topic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A builder for changing many subscriptions of a tree of {@link HierarchicallyTopicMatcher} at once.
+ *
+ * <p>
+ * A hierarchy is copied into a mutable node when a change reaches it for the first time,
+ * and following changes modify the node in place. {@link #build()} creates immutable objects
+ * only for the copied hierarchies, and shares the others with the original tree.
+ * Hierarchies which become empty are removed.
+ * </p>
+ * @param <Data> Message object type passing to handlers
+ */
+@NotThreadSafe
+/* package */ final class TopicTreeBuilder<Data> {
+
+    private final Node<Data> _root;
+
+    /**
+     * @param tree A tree to be changed, or {@code null} to build a new tree
+     */
+    /* package */ TopicTreeBuilder(@Nullable HierarchicallyTopicMatcher<Data> tree) {
+        _root = new Node<>(tree);
+    }
+
+    /**
+     * Add a subscription.
+     * @param subscription A subscription
+     */
+    /* package */ void add(TopicSubscription<Data> subscription) {
+        String[] levels = subscription.getLevels();
+        Node<Data> node = _root;
+        for (int i = 0; i < levels.length; i++) {
+            if ("#".equals(levels[i])) {
+                SharedSubscriptionGroup.add(node.mutableMultiLevelHandlers(), subscription);
+                return;
+            }
+            node = node.child(levels[i], true);
+        }
+        SharedSubscriptionGroup.add(node.mutableHandlers(), subscription);
+    }
+
+    /**
+     * Remove a handler.
+     * @param levels Hierarchies of a topic filter
+     * @param subscription A subscription to be removed
+     * @param sameInstance {@code true} to remove the same instance of the subscription,
+     *                     {@code false} to remove the first subscription of the same handler
+     * @return {@code true} if removed, {@code false} if not found
+     */
+    /* package */ boolean remove(TopicSubscription<Data> subscription, boolean sameInstance) {
+        String[] levels = subscription.getLevels();
+        Node<Data> node = _root;
+        for (int i = 0; i < levels.length; i++) {
+            if ("#".equals(levels[i])) {
+                int index = SharedSubscriptionGroup.indexOf(node.multiLevelHandlers, subscription, sameInstance);
+                if (index < 0) {
+                    return false;
+                }
+                SharedSubscriptionGroup.remove(node.mutableMultiLevelHandlers(), index, subscription, sameInstance);
+                return true;
+            }
+            node = node.child(levels[i], false);
+            if (node == null) {
+                return false;
+            }
+        }
+        int index = SharedSubscriptionGroup.indexOf(node.handlers, subscription, sameInstance);
+        if (index < 0) {
+            return false;
+        }
+        SharedSubscriptionGroup.remove(node.mutableHandlers(), index, subscription, sameInstance);
+        return true;
+    }
+
+    /**
+     * @return A tree which has all changes
+     */
+    /* package */ HierarchicallyTopicMatcher<Data> build() {
+        HierarchicallyTopicMatcher<Data> tree = _root.build();
+        return (tree != null) ? tree : new HierarchicallyTopicMatcher<Data>();
+    }
+
+    /**
+     * A mutable copy of a hierarchy.
+     * Lists and children are shared with the original until changed.
+     */
+    private static final class Node<Data> {
+        List<TopicSubscription<Data>> handlers;
+
+        List<TopicSubscription<Data>> multiLevelHandlers;
+
+        /** {@code true} if {@link #handlers} is a copy */
+        boolean handlersCopied;
+
+        /** {@code true} if {@link #multiLevelHandlers} is a copy */
+        boolean multiLevelHandlersCopied;
+
+        /**
+         * Next hierarchies by the name; an unchanged {@link HierarchicallyTopicMatcher} or a {@link Node}.
+         * {@code null} until a child is changed, and {@link #originalChildren} are used.
+         */
+        Map<String, Object> children;
+
+        final TopicLevelMap<HierarchicallyTopicMatcher<Data>> originalChildren;
+
+        /** Next hierarchy for '+'; an unchanged {@link HierarchicallyTopicMatcher}, a {@link Node} or {@code null} */
+        Object singleLevelChild;
+
+        Node(@Nullable HierarchicallyTopicMatcher<Data> original) {
+            if (original == null) {
+                handlers = Collections.emptyList();
+                multiLevelHandlers = Collections.emptyList();
+                originalChildren = TopicLevelMap.empty();
+                return;
+            }
+            handlers = original.getHandlers();
+            multiLevelHandlers = original.getMultiLevelHandlers();
+            originalChildren = original.getChildren();
+            singleLevelChild = original.getSingleLevelChild();
+        }
+
+        List<TopicSubscription<Data>> mutableHandlers() {
+            if (!handlersCopied) {
+                handlers = new ArrayList<>(handlers);
+                handlersCopied = true;
+            }
+            return handlers;
+        }
+
+        List<TopicSubscription<Data>> mutableMultiLevelHandlers() {
+            if (!multiLevelHandlersCopied) {
+                multiLevelHandlers = new ArrayList<>(multiLevelHandlers);
+                multiLevelHandlersCopied = true;
+            }
+            return multiLevelHandlers;
+        }
+
+        private Map<String, Object> children() {
+            if (children == null) {
+                children = new HashMap<>(Math.max(originalChildren.size() * 2, 4));
+                for (int slot = 0; slot < originalChildren.slots(); slot++) {
+                    String name = originalChildren.keyAt(slot);
+                    if (name != null) {
+                        children.put(name, originalChildren.valueAt(slot));
+                    }
+                }
+            }
+            return children;
+        }
+
+        /**
+         * @param level A name of the next hierarchy, or '+'
+         * @param create {@code true} to create the hierarchy if not exists
+         * @return A mutable next hierarchy, or {@code null} if not exists and not created
+         */
+        @Nullable
+        Node<Data> child(String level, boolean create) {
+            boolean singleLevel = "+".equals(level);
+            Object child = singleLevel ? singleLevelChild
+                    : (children != null) ? children.get(level) : originalChildren.get(level);
+            if (child instanceof Node) {
+                @SuppressWarnings("unchecked")
+                Node<Data> node = (Node<Data>) child;
+                return node;
+            }
+            if (child == null && !create) {
+                return null;
+            }
+
+            @SuppressWarnings("unchecked")
+            Node<Data> node = new Node<>((HierarchicallyTopicMatcher<Data>) child);
+            if (singleLevel) {
+                singleLevelChild = node;
+            } else {
+                children().put(level, node);
+            }
+            return node;
+        }
+
+        /** @return A tree of this hierarchy, or {@code null} if empty */
+        @Nullable
+        HierarchicallyTopicMatcher<Data> build() {
+            TopicLevelMap<HierarchicallyTopicMatcher<Data>> builtChildren = originalChildren;
+            if (children != null) {
+                Map<String, HierarchicallyTopicMatcher<Data>> built = new HashMap<>(children.size() * 2);
+                for (Map.Entry<String, Object> entry : children.entrySet()) {
+                    HierarchicallyTopicMatcher<Data> child = build(entry.getValue());
+                    if (child != null) {
+                        built.put(entry.getKey(), child);
+                    }
+                }
+                builtChildren = TopicLevelMap.copyOf(built);
+            }
+            HierarchicallyTopicMatcher<Data> builtSingleLevelChild = build(singleLevelChild);
+
+            if (handlers.isEmpty() && multiLevelHandlers.isEmpty()
+                    && builtChildren.isEmpty() && builtSingleLevelChild == null) {
+                return null;
+            }
+            return new HierarchicallyTopicMatcher<>(handlers, multiLevelHandlers,
+                    builtChildren, builtSingleLevelChild);
+        }
+
+        @Nullable
+        private static <Data> HierarchicallyTopicMatcher<Data> build(@Nullable Object child) {
+            if (child instanceof Node) {
+                @SuppressWarnings("unchecked")
+                Node<Data> node = (Node<Data>) child;
+                return node.build();
+            }
+            @SuppressWarnings("unchecked")
+            HierarchicallyTopicMatcher<Data> matcher = (HierarchicallyTopicMatcher<Data>) child;
+            return matcher;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.dash14.mqtt.topic;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.dash14.mqtt.topic.ShardedTopicDispatcher.OverflowPolicy;
+import org.junit.Test;
+
+public class ShardedTopicDispatcherTest {
+
+    @Test
+    public void testDispatchInTopicOrder() throws Exception {
+        TopicDispatcher<Integer> dispatcher = new TopicDispatcher<>();
+        final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        final Map<String, String> threads = new ConcurrentHashMap<>();
+        dispatcher.addHandler("devices/+/temp", (topic, message) -> {
+            received.computeIfAbsent(topic, t -> Collections.synchronizedList(new ArrayList<>())).add(message);
+            // a device is handled by one worker
+            String device = topic.split("/")[1];
+            String previous = threads.putIfAbsent(device, Thread.currentThread().getName());
+            assertEquals(Thread.currentThread().getName(), previous != null ? previous : threads.get(device));
+        });
+
+        ShardedTopicDispatcher<Integer> sharded
+                = new ShardedTopicDispatcher<>(dispatcher, 4, 16, OverflowPolicy.BLOCK, 1);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(sharded.dispatch("devices/" + (i % 10) + "/temp", i));
+        }
+        assertFalse(sharded.dispatch("", 0));
+        sharded.shutdown();
+        assertTrue(sharded.awaitTermination(10, TimeUnit.SECONDS));
+        assertFalse(sharded.dispatch("devices/0/temp", 0));
+
+        assertEquals(received.size(), 10);
+        for (List<Integer> messages : received.values()) {
+            assertEquals(messages.size(), 100);
+            for (int i = 1; i < messages.size(); i++) {
+                assertTrue(messages.get(i - 1) < messages.get(i));
+            }
+        }
+        assertEquals(threads.size(), 10);
+        assertEquals(sharded.getDroppedCount(), 0);
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        TopicDispatcher<Integer> dispatcher = new TopicDispatcher<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        dispatcher.addHandler("a", (topic, message) -> {
+            if (message == 0) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            handled.add(Thread.currentThread().getName() + ":" + message);
+        });
+
+        // DROP
+        ShardedTopicDispatcher<Integer> sharded
+                = new ShardedTopicDispatcher<>(dispatcher, 1, 1, OverflowPolicy.DROP);
+        assertTrue(sharded.dispatch("a", 0));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(sharded.dispatch("a", 1));
+        assertFalse(sharded.dispatch("a", 2));
+        assertEquals(sharded.getDroppedCount(), 1);
+        release.countDown();
+        sharded.shutdown();
+        assertTrue(sharded.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(handled.size(), 2);
+        handled.clear();
+
+        // CALLER_RUNS
+        final CountDownLatch started2 = new CountDownLatch(1);
+        final CountDownLatch release2 = new CountDownLatch(1);
+        dispatcher.addHandler("b", (topic, message) -> {
+            started2.countDown();
+            try {
+                release2.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        sharded = new ShardedTopicDispatcher<>(dispatcher, 1, 1, OverflowPolicy.CALLER_RUNS);
+        assertTrue(sharded.dispatch("b", 0));
+        assertTrue(started2.await(10, TimeUnit.SECONDS));
+        assertTrue(sharded.dispatch("a", 1));
+        assertTrue(sharded.dispatch("a", 2));
+        assertEquals(handled, Collections.singletonList(Thread.currentThread().getName() + ":2"));
+        release2.countDown();
+        sharded.shutdown();
+        assertTrue(sharded.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(handled.size(), 2);
+    }
+
+    @Test
+    public void testShutdownWhileBlocked() throws Exception {
+        TopicDispatcher<Integer> dispatcher = new TopicDispatcher<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+        dispatcher.addHandler("a", (topic, message) -> {
+            if (message == 0) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            handled.add(message);
+        });
+
+        final ShardedTopicDispatcher<Integer> sharded
+                = new ShardedTopicDispatcher<>(dispatcher, 1, 1, OverflowPolicy.BLOCK);
+        assertTrue(sharded.dispatch("a", 0));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(sharded.dispatch("a", 1));
+        final AtomicReference<Boolean> result = new AtomicReference<>();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                result.set(sharded.dispatch("a", 2));
+            }
+        };
+        producer.start();
+        while (producer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+
+        // neither the producer nor shutdown() waits for the blocked worker
+        sharded.shutdown();
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+        assertEquals(result.get(), Boolean.FALSE);
+        assertFalse(sharded.awaitTermination(0, TimeUnit.SECONDS));
+
+        // the queued message is still handled
+        release.countDown();
+        assertTrue(sharded.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(handled, Arrays.asList(0, 1));
+        assertEquals(sharded.getDroppedCount(), 0);
+    }
+}
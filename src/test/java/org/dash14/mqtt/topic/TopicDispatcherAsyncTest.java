@@ -0,0 +1,252 @@
+package org.dash14.mqtt.topic;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dash14.mqtt.topic.TopicDispatcher.Ordering;
+import org.dash14.mqtt.topic.TopicDispatcher.SharedSelection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class TopicDispatcherAsyncTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDispatchAsyncInTopicOrder() throws Exception {
+        TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+        manager.enableAsyncDispatch(executor, 8, Ordering.TOPIC);
+
+        final List<String> a = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> b = Collections.synchronizedList(new ArrayList<String>());
+        manager.addHandler("a/+", (topic, message) -> a.add(topic + ":" + message));
+        manager.addHandler("a/#", (topic, message) -> b.add(topic + ":" + message));
+
+        List<ListenableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(manager.dispatchAsync("a/" + (i % 10), i));
+        }
+        for (ListenableFuture<Boolean> future : futures) {
+            assertTrue(future.get(10, TimeUnit.SECONDS));
+        }
+        assertFalse(manager.dispatchAsync("b", 0).get(10, TimeUnit.SECONDS));
+
+        // messages of each topic are handled in the dispatched order
+        assertEquals(a.size(), 1000);
+        assertEquals(b.size(), 1000);
+        for (int t = 0; t < 10; t++) {
+            int last = -1;
+            for (String s : a) {
+                if (s.startsWith("a/" + t + ":")) {
+                    int n = Integer.parseInt(s.substring(s.indexOf(':') + 1));
+                    assertTrue(n > last);
+                    last = n;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDispatchAsyncInHandlerOrder() throws Exception {
+        TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+        manager.enableAsyncDispatch(executor, 8, Ordering.HANDLER);
+
+        final List<Integer> a = new ArrayList<>();
+        manager.addHandler("+/+", (topic, message) -> a.add(message));
+
+        ListenableFuture<Boolean> last = null;
+        for (int i = 0; i < 1000; i++) {
+            last = manager.dispatchAsync("t/" + i, i);
+        }
+        assertTrue(last.get(10, TimeUnit.SECONDS));
+
+        // messages to the handler are handled in the dispatched order
+        assertEquals(a.size(), 1000);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(a.get(i).intValue(), i);
+        }
+    }
+
+    @Test
+    public void testDispatchAsyncWithException() throws Exception {
+        TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+
+        try {
+            manager.dispatchAsync("a", 0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        manager.enableAsyncDispatch(executor, 1, Ordering.TOPIC);
+        final List<Integer> a = Collections.synchronizedList(new ArrayList<Integer>());
+        manager.addHandler("a", (topic, message) -> {
+            throw new IllegalStateException("test");
+        });
+        manager.addHandler("a", (topic, message) -> a.add(message));
+
+        try {
+            manager.dispatchAsync("a", 1).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertEquals(expected.getCause().getMessage(), "test");
+        }
+        // other handlers are called
+        assertEquals(a.size(), 1);
+    }
+
+    @Test
+    public void testDispatchAsyncToConsumingHandler() throws Exception {
+        for (Ordering ordering : Ordering.values()) {
+            TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+            manager.enableAsyncDispatch(executor, 4, ordering);
+            final List<String> a = Collections.synchronizedList(new ArrayList<String>());
+            manager.addHandler("a", new ConsumingTopicHandler<Integer>() {
+                @Override
+                public boolean consumeTopic(String topic, Integer message) {
+                    a.add("consume-" + message);
+                    return true;
+                }
+
+                @Override
+                public void handleTopic(String topic, Integer message) {
+                    fail();
+                }
+            }, 10);
+            manager.addHandler("a", (topic, message) -> a.add("handle-" + message));
+
+            assertTrue(manager.dispatchAsync("a", 1).get(10, TimeUnit.SECONDS));
+            // consuming can't stop handlers called concurrently
+            Collections.sort(a);
+            assertEquals(a, Arrays.asList("consume-1", "handle-1"));
+        }
+    }
+
+    @Test
+    public void testDispatchAsyncToLeastLoaded() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            final TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+            manager.enableAsyncDispatch(single, 1, Ordering.HANDLER);
+            manager.setSharedSelection(SharedSelection.LEAST_LOADED);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<String> a = Collections.synchronizedList(new ArrayList<String>());
+            manager.addHandler("$share/g/a", (topic, message) -> {
+                if (message == 0) {
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else {
+                    a.add(message + "-1");
+                }
+            });
+            manager.addHandler("$share/g/a", (topic, message) -> a.add(message + "-2"));
+
+            // the first handler is busy on another thread, and the executor is busy
+            Thread thread = new Thread(() -> manager.dispatch("a", 0));
+            thread.start();
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            final CountDownLatch queued = new CountDownLatch(1);
+            single.execute(() -> {
+                try {
+                    queued.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            // queued messages are counted as loads of the second handler
+            List<ListenableFuture<Boolean>> futures = new ArrayList<>();
+            for (int i = 1; i <= 3; i++) {
+                futures.add(manager.dispatchAsync("a", i));
+            }
+            queued.countDown();
+            for (ListenableFuture<Boolean> future : futures) {
+                assertTrue(future.get(10, TimeUnit.SECONDS));
+            }
+            release.countDown();
+            thread.join();
+            assertEquals(a, Arrays.asList("1-2", "2-1", "3-2"));
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRejectedWhileRunning() throws Exception {
+        // runs only the first task, and rejects after that
+        final AtomicInteger executions = new AtomicInteger();
+        Executor rejecting = command -> {
+            if (executions.getAndIncrement() > 0) {
+                throw new RejectedExecutionException("test");
+            }
+            new Thread(command).start();
+        };
+        for (Ordering ordering : Ordering.values()) {
+            executions.set(0);
+            TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+            manager.enableAsyncDispatch(rejecting, 1, ordering);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            manager.addHandler("a", (topic, message) -> {
+                if (message == 0) {
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            // queued more than run at once, so that the rest are scheduled again
+            List<ListenableFuture<Boolean>> futures = new ArrayList<>();
+            futures.add(manager.dispatchAsync("a", 0));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            for (int i = 1; i < 100; i++) {
+                futures.add(manager.dispatchAsync("a", i));
+            }
+            release.countDown();
+
+            int rejected = 0;
+            for (ListenableFuture<Boolean> future : futures) {
+                try {
+                    assertTrue(future.get(10, TimeUnit.SECONDS));
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof RejectedExecutionException);
+                    rejected++;
+                }
+            }
+            assertTrue(rejected > 0);
+            assertTrue(futures.get(0).get());
+        }
+    }
+}
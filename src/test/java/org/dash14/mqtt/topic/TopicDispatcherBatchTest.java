@@ -0,0 +1,108 @@
+package org.dash14.mqtt.topic;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+public class TopicDispatcherBatchTest {
+
+    @Test
+    public void testDispatchBatch() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        manager.addHandler("a/+", (topic, message) -> {
+            test.add(message + "-b1");
+        });
+        manager.addHandler("a/#", new BatchTopicHandler<String>() {
+            @Override
+            public void handleTopic(String topic, String message) {
+                fail();
+            }
+
+            @Override
+            public void handleTopicBatch(String topic, List<String> messages) {
+                test.add(messages + "-b2");
+            }
+        });
+
+        List<Map.Entry<String, String>> messages = Arrays.asList(
+                Maps.immutableEntry("a/b", "A"),
+                Maps.immutableEntry("a/b", "B"),
+                Maps.immutableEntry("x",   "C"),
+                Maps.immutableEntry("a",   "D"),
+                Maps.immutableEntry("",    "E"),
+                Maps.immutableEntry("a/b", "F"));
+        assertEquals(manager.dispatchBatch(messages), 4);
+        assertEquals(test, Arrays.asList("[A, B]-b2", "A-b1", "B-b1", "[D]-b2", "[F]-b2", "F-b1"));
+
+        // with the cache of matched handlers
+        test.clear();
+        manager.enableMatchCache(10);
+        assertEquals(manager.dispatchBatch(messages), 4);
+        assertEquals(test, Arrays.asList("[A, B]-b2", "A-b1", "B-b1", "[D]-b2", "[F]-b2", "F-b1"));
+
+        assertEquals(manager.dispatchBatch(new ArrayList<Map.Entry<String, String>>()), 0);
+    }
+
+    @Test
+    public void testDispatchBatchWithChanges() {
+        for (boolean cached : Arrays.asList(false, true)) {
+            final TopicDispatcher<String> manager = new TopicDispatcher<>();
+            if (cached) {
+                manager.enableMatchCache(10);
+            }
+            final List<String> test = new ArrayList<>();
+            manager.addHandler("b", (topic, message) -> test.add(message + "-b1"));
+            // cached before the batch
+            manager.getMatchedSubscriptions("b");
+            manager.dispatch("b", "A");
+            manager.addHandler("a", (topic, message) -> {
+                test.add(message + "-a");
+                manager.addHandler("b", (t, m) -> test.add(m + "-b2"));
+                manager.addHandler("c", (t, m) -> test.add(m + "-c"));
+            });
+
+            // all messages are matched before calling handlers
+            assertEquals(manager.dispatchBatch(Arrays.asList(
+                    Maps.immutableEntry("a", "B"),
+                    Maps.immutableEntry("b", "C"),
+                    Maps.immutableEntry("c", "D"))), 2);
+            assertEquals(test, Arrays.asList("A-b1", "B-a", "C-b1"));
+        }
+    }
+
+    @Test
+    public void testDispatchBatchWithException() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+        manager.addHandler("a", (topic, message) -> {
+            if ("A".equals(message)) {
+                throw new IllegalStateException("test");
+            }
+            test.add(message + "-1");
+        });
+        manager.addHandler("a", (topic, message) -> test.add(message + "-2"));
+        manager.addHandler("b", (topic, message) -> test.add(message + "-3"));
+
+        // other handlers and the rest of the batch are called before throwing,
+        // but the handler which throws is not called for the rest of the group
+        try {
+            manager.dispatchBatch(Arrays.asList(
+                    Maps.immutableEntry("a", "A"),
+                    Maps.immutableEntry("a", "B"),
+                    Maps.immutableEntry("b", "C")));
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(expected.getMessage(), "test");
+        }
+        assertEquals(test, Arrays.asList("A-2", "B-2", "C-3"));
+    }
+}
@@ -0,0 +1,130 @@
+package org.dash14.mqtt.topic;
+
+import static org.junit.Assert.*;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TopicDispatcherBrokerSubscriptionTest {
+
+    @Test
+    public void testMinimalSet() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        TopicHandler<String> h1 = (topic, message) -> { };
+        TopicHandler<String> h2 = (topic, message) -> { };
+        manager.addHandler("a/b/+", h1);
+        final List<String> events = new ArrayList<>();
+        BrokerSubscriptionListener listener = (subscribe, unsubscribe) -> events.add(subscribe + "-" + unsubscribe);
+
+        assertEquals(manager.enableBrokerSubscriptions(listener), set("a/b/+"));
+        manager.addHandler("a/b/c", h1);
+        manager.addHandler("x", h1);
+        TopicSubscription<String> all = manager.addHandler("a/#", h1);
+        manager.addHandler("a/#", h2);
+        manager.addHandler("$share/g/x", h2);
+        assertEquals(events, Arrays.asList("[x]-[]", "[a/#]-[a/b/+]"));
+        assertEquals(manager.getBrokerSubscriptions(), set("a/#", "x"));
+        events.clear();
+
+        // still registered by another handler
+        assertTrue(manager.removeSubscription(all));
+        assertTrue(events.isEmpty());
+        assertTrue(manager.removeHandler("a/#", h2));
+        assertTrue(manager.removeHandler("x", h1));
+        assertEquals(events, Arrays.asList("[a/b/+]-[a/#]"));
+        assertEquals(manager.getBrokerSubscriptions(), set("a/b/+", "x"));
+        events.clear();
+
+        manager.replaceHandlers(Arrays.asList(new SimpleEntry<>("+/b/c", h1), new SimpleEntry<>("a/b/c", h1)));
+        assertEquals(events, Arrays.asList("[+/b/c]-[x, a/b/+]"));
+
+        manager.disableBrokerSubscriptions();
+        assertTrue(manager.getBrokerSubscriptions().isEmpty());
+    }
+
+    @Test
+    public void testSameAsComparingAll() {
+        Random random = new Random(1);
+        String[] names = { "a", "b", "+", "#" };
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final Set<String> notified = new HashSet<>();
+        manager.enableBrokerSubscriptions((subscribe, unsubscribe) -> {
+            assertTrue(notified.addAll(subscribe));
+            assertTrue(notified.containsAll(unsubscribe));
+            notified.removeAll(unsubscribe);
+        });
+
+        List<String> registered = new ArrayList<>();
+        List<TopicHandler<String>> handlers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            handlers.add((topic, message) -> { });
+        }
+        for (int i = 0; i < 1000; i++) {
+            String filter = randomFilter(random, names);
+            TopicHandler<String> handler = handlers.get(random.nextInt(handlers.size()));
+            int operation = random.nextInt(3);
+            if (operation == 0) {
+                manager.addHandler(filter, handler);
+                registered.add(filter + "=" + handlers.indexOf(handler));
+            } else if (operation == 1) {
+                if (manager.removeHandler(filter, handler)) {
+                    registered.remove(filter + "=" + handlers.indexOf(handler));
+                }
+            } else {
+                List<Map.Entry<String, TopicHandler<String>>> entries = new ArrayList<>();
+                for (int j = 0; j < 3; j++) {
+                    entries.add(new SimpleEntry<>(randomFilter(random, names), handler));
+                }
+                manager.addHandlers(entries);
+                for (Map.Entry<String, TopicHandler<String>> entry : entries) {
+                    registered.add(entry.getKey() + "=" + handlers.indexOf(handler));
+                }
+            }
+
+            Set<String> filters = new HashSet<>();
+            for (String entry : registered) {
+                filters.add(entry.substring(0, entry.indexOf('=')));
+            }
+            Set<String> expected = new HashSet<>();
+            for (String filter1 : filters) {
+                boolean covered = false;
+                for (String filter2 : filters) {
+                    covered |= !filter1.equals(filter2) && TopicFilters.covers(filter2, filter1);
+                }
+                if (!covered) {
+                    expected.add(filter1);
+                }
+            }
+            assertEquals(manager.getBrokerSubscriptions(), expected);
+            assertEquals(notified, expected);
+        }
+    }
+
+    private static String randomFilter(Random random, String[] names) {
+        StringBuilder filter = new StringBuilder();
+        int length = 1 + random.nextInt(3);
+        for (int i = 0; i < length; i++) {
+            String name = names[random.nextInt(names.length)];
+            if (i > 0) {
+                filter.append('/');
+            }
+            filter.append(name);
+            if ("#".equals(name)) {
+                break;
+            }
+        }
+        return filter.toString();
+    }
+
+    private static Set<String> set(String... filters) {
+        return new HashSet<>(Arrays.asList(filters));
+    }
+}
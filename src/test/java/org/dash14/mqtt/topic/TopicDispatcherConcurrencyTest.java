@@ -0,0 +1,206 @@
+package org.dash14.mqtt.topic;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TopicDispatcherConcurrencyTest {
+
+    @Test
+    public void testConcurrentChanges() throws Exception {
+        final TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+        manager.enableMatchCache(1000);
+        final AtomicInteger permanentCount = new AtomicInteger();
+        manager.addHandler("devices/#", (topic, message) -> permanentCount.incrementAndGet());
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger dispatchCount = new AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int writer = t;
+            final Random random = new Random(t);
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            String filter = random.nextBoolean()
+                                    ? "devices/" + writer + "/" + random.nextInt(5) : "devices/+/" + writer;
+                            String topic = "devices/" + writer + "/" + writer;
+                            final AtomicInteger count = new AtomicInteger();
+                            final Thread self = Thread.currentThread();
+                            TopicHandler<Integer> handler = (name, message) -> {
+                                // also called by dispatching threads while added
+                                if (Thread.currentThread() == self) {
+                                    count.incrementAndGet();
+                                }
+                            };
+
+                            TopicSubscription<Integer> subscription = manager.addHandler(filter, handler);
+                            // visible to dispatching right after added
+                            manager.dispatch(filter.replace('+', '0'), 0);
+                            assertEquals(count.get(), 1);
+
+                            assertTrue(manager.removeSubscription(subscription));
+                            assertFalse(manager.removeSubscription(subscription));
+                            assertFalse(manager.removeHandler(filter, handler));
+                            // not visible after removed
+                            manager.dispatch(filter.replace('+', '0'), 0);
+                            manager.dispatch(topic, 0);
+                            assertEquals(count.get(), 1);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        List<Thread> dispatchers = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            final Random random = new Random(100 + t);
+            dispatchers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            manager.dispatch("devices/" + random.nextInt(4) + "/" + random.nextInt(5), 0);
+                            dispatchCount.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : dispatchers) {
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        running.set(false);
+        for (Thread thread : dispatchers) {
+            thread.join();
+        }
+        assertNull(failure.get());
+
+        // the permanent handler is never lost
+        assertEquals(permanentCount.get(), dispatchCount.get() + 4 * 2000 * 3);
+        assertEquals(manager.getMatchedSubscriptions("devices/0/0").size(), 1);
+        assertEquals(manager.getOverlappingSubscriptions("#").size(), 1);
+        assertEquals(manager.getOverlappingSubscriptions("#").get(0).getTopicFilter(), "devices/#");
+    }
+
+    @Test
+    public void testFailureOfCombinedChange() throws Exception {
+        final TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+        final TopicHandler<Integer> broken = new TopicHandler<Integer>() {
+            @Override
+            public void handleTopic(String topic, Integer message) {
+            }
+
+            @Override
+            public int hashCode() {
+                throw new IllegalStateException("test");
+            }
+        };
+        final List<Object> results = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int writer = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        TopicHandler<Integer> handler = (writer == 2) ? broken : (topic, message) -> { };
+                        results.add(manager.addHandler("a/" + writer, handler));
+                    } catch (Throwable e) {
+                        results.add(e);
+                    }
+                }
+            });
+        }
+
+        // all changes wait for the lock, and are applied at once by one of the threads
+        synchronized (manager) {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                while (thread.getState() != Thread.State.BLOCKED) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // the failure is thrown only by the thread which added the broken handler
+        assertEquals(results.size(), 4);
+        int failures = 0;
+        for (Object result : results) {
+            if (result instanceof Throwable) {
+                assertEquals(((Throwable) result).getMessage(), "test");
+                failures++;
+            } else {
+                assertNotNull(result);
+                assertEquals(manager.getMatchedSubscriptions(((TopicSubscription<?>) result).getTopicFilter()),
+                        Collections.singletonList(result));
+            }
+        }
+        assertEquals(failures, 1);
+        assertTrue(manager.getMatchedSubscriptions("a/2").isEmpty());
+        assertEquals(manager.getOverlappingSubscriptions("#").size(), 3);
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        final TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+        final List<TopicSubscription<Integer>> added = Collections.synchronizedList(
+                new ArrayList<TopicSubscription<Integer>>());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int writer = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            added.add(manager.addHandler("a/" + writer + "/" + i, (topic, message) -> { }));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+
+        // no change is lost by combining
+        assertEquals(manager.getOverlappingSubscriptions("#").size(), 8 * 500);
+        for (TopicSubscription<Integer> subscription : added) {
+            assertEquals(manager.getMatchedSubscriptions(subscription.getTopicFilter()).size(), 1);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.dash14.mqtt.topic;
+
+import static org.junit.Assert.*;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TopicDispatcherMetricsTest {
+
+    @Test
+    public void testMetrics() {
+        TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+        TopicHandler<Integer> a = (topic, message) -> {};
+        TopicHandler<Integer> b = (topic, message) -> {};
+        manager.addHandler("a/+", a);
+        manager.addHandler("a/#", b);
+        manager.addHandler("b", b);
+
+        // not recorded while disabled
+        manager.dispatch("a/1", 0);
+        assertNull(manager.getMetrics());
+
+        DispatchMetrics metrics = manager.enableMetrics();
+        assertSame(metrics, manager.getMetrics());
+        manager.dispatch("a/1", 0);
+        manager.dispatch("a/2", 0);
+        manager.dispatch("a", 0);
+        manager.dispatch("c", 0);
+
+        assertEquals(metrics.getDispatchCount(), 4);
+        assertEquals(metrics.getUnmatchedCount(), 1);
+        assertEquals(metrics.getFilterMatchCount("a/+"), 2);
+        assertEquals(metrics.getFilterMatchCount("a/#"), 3);
+        assertEquals(metrics.getFilterMatchCount("b"), 0);
+        assertEquals(metrics.getMatchLatency().getCount(), 4);
+        assertEquals(metrics.getHandlerLatency().getCount(), 3);
+        assertEquals(metrics.getHandlerLatency(a).getCount(), 2);
+        assertEquals(metrics.getHandlerLatency(b).getCount(), 3);
+        assertEquals(metrics.getFilterMatchCounts().size(), 2);
+        assertEquals(metrics.getHandlerCallCounts().size(), 2);
+
+        // a batch is counted by messages
+        manager.dispatchBatch(Arrays.<Map.Entry<String, Integer>>asList(
+                new AbstractMap.SimpleEntry<>("b", 1),
+                new AbstractMap.SimpleEntry<>("b", 2)));
+        assertEquals(metrics.getDispatchCount(), 6);
+        assertEquals(metrics.getFilterMatchCount("b"), 2);
+
+        metrics.reset();
+        assertEquals(metrics.getDispatchCount(), 0);
+        assertNull(metrics.getHandlerLatency(a));
+
+        manager.disableMetrics();
+        manager.dispatch("a/1", 0);
+        assertEquals(metrics.getDispatchCount(), 0);
+        assertNull(manager.getMetrics());
+    }
+
+    @Test
+    public void testMetricsWithException() {
+        TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+        TopicHandler<Integer> a = (topic, message) -> {
+            throw new IllegalStateException("test");
+        };
+        manager.addHandler("a", a);
+        DispatchMetrics metrics = manager.enableMetrics();
+
+        try {
+            manager.dispatch("a", 0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(metrics.getHandlerLatency(a).getCount(), 1);
+        assertEquals(metrics.getHandlerLatency().getCount(), 1);
+    }
+
+    @Test
+    public void testMetricsOfRemovedHandlers() {
+        TopicDispatcher<Integer> manager = new TopicDispatcher<>();
+        DispatchMetrics metrics = manager.enableMetrics();
+        TopicHandler<Integer> a = (topic, message) -> {};
+        TopicHandler<Integer> b = (topic, message) -> {};
+        manager.addHandler("a/+", a);
+        manager.addHandler("a/#", a);
+        TopicSubscription<Integer> subscription = manager.addHandler("a/b", b);
+        manager.dispatch("a/b", 0);
+        assertEquals(metrics.getFilterMatchCounts().size(), 3);
+        assertEquals(metrics.getHandlerCallCounts().size(), 2);
+
+        // kept while another subscription has the handler
+        manager.removeHandler("a/+", a);
+        assertEquals(metrics.getFilterMatchCounts().keySet(), new HashSet<>(Arrays.asList("a/#", "a/b")));
+        assertNotNull(metrics.getHandlerLatency(a));
+
+        manager.removeSubscription(subscription);
+        assertEquals(metrics.getFilterMatchCounts().keySet(), Collections.singleton("a/#"));
+        assertNull(metrics.getHandlerLatency(b));
+
+        manager.removeHandlers(Collections.singletonList(new AbstractMap.SimpleEntry<>("a/#", a)));
+        assertTrue(metrics.getFilterMatchCounts().isEmpty());
+        assertTrue(metrics.getHandlerCallCounts().isEmpty());
+
+        // a shared subscription is recorded by the topic-filter, not by each change of the group
+        for (int i = 0; i < 10; i++) {
+            TopicHandler<Integer> member = (topic, message) -> {};
+            manager.addHandler("$share/g/s", member);
+            manager.dispatch("s", 0);
+            if (i % 2 == 1) {
+                manager.removeHandler("$share/g/s", member);
+            }
+        }
+        assertEquals(metrics.getHandlerCallCounts(), Collections.singletonMap("$share/g/s", 10L));
+        manager.replaceHandlers(Collections.<Map.Entry<String, TopicHandler<Integer>>>emptyList());
+        assertTrue(metrics.getFilterMatchCounts().isEmpty());
+        assertTrue(metrics.getHandlerCallCounts().isEmpty());
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.getPercentileNanos(50), 0);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(histogram.getCount(), 100);
+        assertEquals(histogram.getTotalNanos(), 5050000);
+        assertEquals(histogram.getMaxNanos(), 100000);
+        assertEquals(histogram.getMeanNanos(), 50500);
+        // an upper bound within a factor of two
+        long p50 = histogram.getPercentileNanos(50);
+        assertTrue(p50 >= 50000 && p50 < 100000);
+        assertEquals(histogram.getPercentileNanos(100), 100000);
+    }
+
+    @Test
+    public void testStripedCounters() throws Exception {
+        final StripedCounters counters = new StripedCounters(2);
+        final LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int writer = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counters.add(0, 1L);
+                        counters.add(1, writer);
+                        histogram.record(writer * 1000);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // no addition is lost by contention
+        assertEquals(counters.get(0), 8 * 100000);
+        assertEquals(counters.get(1), (0 + 1 + 2 + 3 + 4 + 5 + 6 + 7) * 100000);
+        assertEquals(histogram.getCount(), 8 * 100000);
+        assertEquals(histogram.getTotalNanos(), (0 + 1 + 2 + 3 + 4 + 5 + 6 + 7) * 100000 * 1000L);
+        assertEquals(histogram.getMaxNanos(), 7000);
+        assertEquals(histogram.getPercentileNanos(1), 0);
+
+        counters.reset();
+        assertEquals(counters.get(0), 0);
+        assertEquals(counters.get(1), 0);
+        counters.add(1, 3L);
+        assertEquals(counters.get(1), 3);
+    }
+}
@@ -0,0 +1,131 @@
+package org.dash14.mqtt.topic;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TopicDispatcherQueryTest {
+
+    @Test
+    public void testMatchedSubscriptions() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        TopicHandler<String> h1 = (topic, message) -> { };
+        TopicHandler<String> h2 = (topic, message) -> { };
+        manager.addHandler("abc/+", h1);
+        manager.addHandler("$share/g/abc/#", h1);
+        manager.addHandler("$share/g/abc/#", h2);
+        manager.addHandler("xyz", h2);
+
+        assertEquals(filtersOf(manager.getMatchedSubscriptions("abc/def")),
+                set("abc/+", "$share/g/abc/#"));
+        assertEquals(manager.getMatchedSubscriptions("abc/def").size(), 3);
+        assertTrue(manager.getMatchedSubscriptions("def").isEmpty());
+        assertTrue(manager.getMatchedSubscriptions("").isEmpty());
+
+        manager.compile();
+        assertEquals(manager.getMatchedSubscriptions("abc").size(), 2);
+    }
+
+    @Test
+    public void testFilterRelations() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        TopicHandler<String> handler = (topic, message) -> { };
+        for (String filter : Arrays.asList("#", "a", "a/#", "a/b", "a/+", "+/b/c", "a/b/c", "x/y", "$share/g/a/+/c")) {
+            manager.addHandler(filter, handler);
+        }
+
+        assertEquals(filtersOf(manager.getOverlappingSubscriptions("a/b/+")),
+                set("#", "a/#", "+/b/c", "a/b/c", "$share/g/a/+/c"));
+        assertEquals(filtersOf(manager.getOverlappingSubscriptions("a/#")),
+                set("#", "a", "a/#", "a/b", "a/+", "+/b/c", "a/b/c", "$share/g/a/+/c"));
+        assertEquals(filtersOf(manager.getCoveringSubscriptions("a/b")), set("#", "a/#", "a/b", "a/+"));
+        assertEquals(filtersOf(manager.getCoveringSubscriptions("a/+/c")), set("#", "a/#", "$share/g/a/+/c"));
+        assertEquals(filtersOf(manager.getCoveredSubscriptions("a/+")), set("a/b", "a/+"));
+        assertEquals(filtersOf(manager.getCoveredSubscriptions("+/#")),
+                set("a", "a/#", "a/b", "a/+", "+/b/c", "a/b/c", "x/y", "$share/g/a/+/c"));
+
+        try {
+            manager.getCoveredSubscriptions("a/#/b");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        assertTrue(TopicFilters.covers("a/#", "a"));
+        assertFalse(TopicFilters.covers("a/+", "a"));
+        assertTrue(TopicFilters.overlaps("a/+", "+/b"));
+        assertFalse(TopicFilters.overlaps("a/+", "a"));
+        assertTrue(TopicFilters.overlaps("$share/g/a", "a"));
+    }
+
+    @Test
+    public void testSameAsComparingAll() {
+        Random random = new Random(1);
+        String[] names = { "a", "b", "+", "#", "" };
+        List<String> filters = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            filters.add(randomFilter(random, names));
+        }
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        TopicHandler<String> handler = (topic, message) -> { };
+        for (String filter : new HashSet<>(filters)) {
+            manager.addHandler(filter, handler);
+        }
+
+        for (String query : filters) {
+            Set<String> overlapping = new HashSet<>();
+            Set<String> covering = new HashSet<>();
+            Set<String> covered = new HashSet<>();
+            for (String filter : new HashSet<>(filters)) {
+                if (TopicFilters.overlaps(filter, query)) {
+                    overlapping.add(filter);
+                }
+                if (TopicFilters.covers(filter, query)) {
+                    covering.add(filter);
+                }
+                if (TopicFilters.covers(query, filter)) {
+                    covered.add(filter);
+                }
+            }
+            assertEquals(query, filtersOf(manager.getOverlappingSubscriptions(query)), overlapping);
+            assertEquals(query, filtersOf(manager.getCoveringSubscriptions(query)), covering);
+            assertEquals(query, filtersOf(manager.getCoveredSubscriptions(query)), covered);
+        }
+    }
+
+    private static String randomFilter(Random random, String[] names) {
+        StringBuilder filter = new StringBuilder();
+        int length = 1 + random.nextInt(4);
+        for (int i = 0; i < length; i++) {
+            String name = names[random.nextInt(names.length)];
+            if (i > 0) {
+                filter.append('/');
+            }
+            filter.append(name);
+            if ("#".equals(name)) {
+                break;
+            }
+        }
+        // an empty topic-filter is invalid
+        return (filter.length() > 0) ? filter.toString() : "/";
+    }
+
+    private static Set<String> filtersOf(List<TopicSubscription<String>> subscriptions) {
+        Set<String> filters = new HashSet<>();
+        for (TopicSubscription<String> subscription : subscriptions) {
+            filters.add(subscription.getTopicFilter());
+        }
+        return filters;
+    }
+
+    private static Set<String> set(String... filters) {
+        return new HashSet<>(Arrays.asList(filters));
+    }
+}
@@ -0,0 +1,148 @@
+package org.dash14.mqtt.topic;
+
+import static org.junit.Assert.*;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TopicDispatcherRetainedTest {
+
+    @Test
+    public void testReplay() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        manager.dispatch("fleet/1/status", "lost");
+        manager.enableRetainedMessages(100);
+        manager.dispatch("fleet/1/status", "A");
+        manager.dispatch("fleet/1/status", "B");
+        manager.dispatchUtf8("fleet/2/status".getBytes(), 0, 14, null);
+        manager.dispatchBatch(Arrays.asList(new SimpleEntry<>("fleet/3/status", "C"),
+                new SimpleEntry<>("fleet/3/status", "D"), new SimpleEntry<>("fleet", "E")));
+        manager.dispatch("fleet/1/status/detail", "F");
+        assertEquals(manager.getRetainedMessageCount(), 5L);
+
+        final List<String> test = new ArrayList<>();
+        manager.addHandler("fleet/+/status", (topic, message) -> test.add(topic + "=" + message));
+        Collections.sort(test);
+        assertEquals(test, Arrays.asList("fleet/1/status=B", "fleet/2/status=null", "fleet/3/status=D"));
+        test.clear();
+
+        manager.addHandlers(Collections.singletonList(
+                new SimpleEntry<String, TopicHandler<String>>("fleet/#", (topic, message) -> test.add(String.valueOf(message)))));
+        Collections.sort(test);
+        assertEquals(test, Arrays.asList("B", "D", "E", "F", "null"));
+        test.clear();
+
+        // not replayed to shared subscriptions
+        manager.addHandler("$share/g/fleet/#", (topic, message) -> test.add(message));
+        assertTrue(test.isEmpty());
+
+        assertEquals(manager.getRetainedMessages("fleet/1/#").keySet(),
+                new HashSet<>(Arrays.asList("fleet/1/status", "fleet/1/status/detail")));
+        assertEquals(manager.getRetainedMessages("+").keySet(), Collections.singleton("fleet"));
+        assertTrue(manager.getRetainedMessages("fleet/+/+/+/+").isEmpty());
+
+        manager.disableRetainedMessages();
+        assertEquals(manager.getRetainedMessageCount(), 0L);
+        assertTrue(manager.getRetainedMessages("#").isEmpty());
+    }
+
+    @Test
+    public void testReplayWithDispatching() {
+        final TopicDispatcher<String> manager = new TopicDispatcher<>();
+        manager.enableRetainedMessages(100);
+        manager.dispatch("t/1", "old");
+        manager.dispatch("t/2", "old");
+
+        // the first replayed topic dispatches the other topic, which reaches the handler before its replay
+        final Map<String, String> last = new HashMap<>();
+        final List<String> test = new ArrayList<>();
+        manager.addHandler("t/+", (topic, message) -> {
+            test.add(topic + "=" + message);
+            last.put(topic, message);
+            if (test.size() == 1) {
+                manager.dispatch(topic.equals("t/1") ? "t/2" : "t/1", "new");
+            }
+        });
+        String first = test.get(0).substring(0, 3);
+        String other = first.equals("t/1") ? "t/2" : "t/1";
+        assertEquals(test, Arrays.asList(first + "=old", other + "=new", other + "=new"));
+        assertEquals(last.get(other), "new");
+
+        // replayed again if dispatched while replaying
+        test.clear();
+        manager.dispatch("u", "A");
+        manager.addHandler("u", (topic, message) -> {
+            test.add(message);
+            if (test.size() == 1) {
+                manager.dispatch("u", "B");
+            }
+        });
+        assertEquals(test, Arrays.asList("A", "B", "B"));
+    }
+
+    @Test
+    public void testEviction() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        manager.enableRetainedMessages(10);
+        for (int i = 0; i < 1000; i++) {
+            manager.dispatch("devices/" + i + "/status", "A");
+        }
+        assertTrue(manager.getRetainedMessageCount() <= 10);
+        Map<String, String> retained = manager.getRetainedMessages("#");
+        assertEquals(retained.size(), manager.getRetainedMessageCount());
+        assertTrue(retained.containsKey("devices/999/status"));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final TopicDispatcher<String> manager = new TopicDispatcher<>();
+        manager.enableRetainedMessages(50);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            String topic = "a/" + random.nextInt(10) + "/" + random.nextInt(20);
+                            manager.dispatch(topic, topic);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+
+        // the tree has the same topics as kept messages
+        Map<String, String> retained = manager.getRetainedMessages("#");
+        assertEquals(retained.size(), manager.getRetainedMessageCount());
+        assertTrue(retained.size() <= 50);
+        for (Map.Entry<String, String> entry : retained.entrySet()) {
+            assertEquals(entry.getValue(), entry.getKey());
+        }
+        for (int i = 0; i < 200; i++) {
+            manager.dispatch("b/" + i, "B");
+        }
+        assertTrue(manager.getRetainedMessages("a/#").isEmpty());
+    }
+}
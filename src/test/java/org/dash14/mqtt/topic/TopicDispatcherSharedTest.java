@@ -0,0 +1,149 @@
+package org.dash14.mqtt.topic;
+
+import static org.junit.Assert.*;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dash14.mqtt.topic.TopicDispatcher.SharedSelection;
+import org.junit.Test;
+
+public class TopicDispatcherSharedTest {
+
+    @Test
+    public void testRoundRobin() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        TopicHandler<String> h1 = (topic, message) -> test.add(message + "-1");
+        TopicHandler<String> h2 = (topic, message) -> test.add(message + "-2");
+        TopicHandler<String> h3 = (topic, message) -> test.add(message + "-3");
+        TopicSubscription<String> s1 = manager.addHandler("$share/g/abc/+", h1);
+        manager.addHandler("$share/g/abc/+", h2);
+        manager.addHandler("$share/other/abc/+", h3);
+        manager.addHandler("abc/#", h3);
+        assertEquals(s1.getShareGroup(), "g");
+        assertNull(manager.addHandler("xyz", h1).getShareGroup());
+
+        for (String message : Arrays.asList("A", "B", "C", "D")) {
+            assertTrue(manager.dispatch("abc/def", message));
+        }
+        assertFalse(manager.dispatch("$share/g/abc/def", "E"));
+        assertEquals(test, Arrays.asList("A-3", "A-1", "A-3", "B-3", "B-2", "B-3",
+                "C-3", "C-1", "C-3", "D-3", "D-2", "D-3"));
+        test.clear();
+
+        // the group keeps the position
+        TopicHandler<String> h4 = (topic, message) -> test.add(message + "-4");
+        manager.addHandler("$share/g/abc/+", h4);
+        manager.compile();
+        manager.removeHandler("$share/other/abc/+", h3);
+        manager.removeHandler("abc/#", h3);
+        for (String message : Arrays.asList("F", "G", "H")) {
+            manager.dispatch("abc/def", message);
+        }
+        assertEquals(test, Arrays.asList("F-2", "G-4", "H-1"));
+        test.clear();
+
+        assertTrue(manager.removeSubscription(s1));
+        assertFalse(manager.removeSubscription(s1));
+        assertTrue(manager.removeHandler("$share/g/abc/+", h2));
+        assertFalse(manager.removeHandler("$share/g/abc/+", h2));
+        manager.dispatch("abc/def", "I");
+        assertTrue(manager.removeHandler("$share/g/abc/+", h4));
+        assertFalse(manager.dispatch("abc/def", "J"));
+        assertEquals(test, Arrays.asList("I-4"));
+    }
+
+    @Test
+    public void testConsumingHandler() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+        manager.addHandler("$share/g/a", new ConsumingTopicHandler<String>() {
+            @Override
+            public boolean consumeTopic(String topic, String message) {
+                test.add("consume-" + message);
+                return true;
+            }
+
+            @Override
+            public void handleTopic(String topic, String message) {
+                fail();
+            }
+        }, 10);
+        manager.addHandler("a", (topic, message) -> test.add("handle-" + message));
+
+        // the group is called as one handler, which can't consume messages
+        assertTrue(manager.dispatch("a", "A"));
+        manager.dispatchBatch(Arrays.asList(new SimpleEntry<>("a", "B")));
+        assertEquals(test, Arrays.asList("consume-A", "handle-A", "consume-B", "handle-B"));
+    }
+
+    @Test
+    public void testTopicHash() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        manager.setSharedSelection(SharedSelection.TOPIC_HASH);
+        final List<String> a = new ArrayList<>();
+        final List<String> b = new ArrayList<>();
+        manager.addHandler("$share/g/#", (topic, message) -> a.add(topic));
+        manager.addHandler("$share/g/#", (topic, message) -> b.add(topic));
+
+        for (int i = 0; i < 100; i++) {
+            manager.dispatch("t/" + (i % 10), "A");
+        }
+        assertEquals(a.size() + b.size(), 100);
+        // a topic is handled by one handler
+        for (String topic : a) {
+            assertFalse(b.contains(topic));
+        }
+    }
+
+    @Test
+    public void testLeastLoaded() throws Exception {
+        final TopicDispatcher<String> manager = new TopicDispatcher<>();
+        manager.setSharedSelection(SharedSelection.LEAST_LOADED);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> test = new ArrayList<>();
+        manager.addHandler("$share/g/a", (topic, message) -> {
+            if ("busy".equals(message)) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                test.add(message + "-1");
+            }
+        });
+        manager.addHandler("$share/g/a", (topic, message) -> test.add(message + "-2"));
+
+        Thread thread = new Thread(() -> manager.dispatch("a", "busy"));
+        thread.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the first handler is busy
+        manager.dispatch("a", "A");
+        manager.dispatch("a", "B");
+        release.countDown();
+        thread.join();
+        assertEquals(test, Arrays.asList("A-2", "B-2"));
+    }
+
+    @Test
+    public void testInvalidSharedSubscription() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        for (String topicFilter : Arrays.asList("$share/g", "$share//a", "$share/g/", "$share/+/a", "$share/g#/a")) {
+            try {
+                manager.addHandler(topicFilter, (topic, message) -> {});
+                fail(topicFilter);
+            } catch (IllegalArgumentException expected) {
+                assertEquals(expected.getMessage(), "invalid topic format: " + topicFilter);
+            }
+        }
+    }
+}
@@ -2,9 +2,14 @@ package org.dash14.mqtt.topic;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.dash14.mqtt.topic.TopicDispatcher;
 import org.dash14.mqtt.topic.TopicHandler;
@@ -304,6 +309,49 @@ public class TopicHandleManagerTest {
         }
     }
 
+    // Pattern match (wildcards '+' and '#' at any level)
+    @Test
+    public void testHandleTopicMixedWilcards() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        // '+' after '+', and '#' after '+'
+        {
+            subscribe("+/+/temp", manager, (topic, message) -> {
+                test.add(message + "-m1");
+            });
+            subscribe("sensors/+/#", manager, (topic, message) -> {
+                test.add(message + "-m2");
+            });
+            assertPublished("sensors/a/temp", "A", manager);
+            assertPublished("sensors/a",      "B", manager);
+            assertPublished("room/b/temp",    "C", manager);
+            assertNotPublished("sensors",     "D", manager);
+            assertNotPublished("room/b/temp/x", "E", manager);
+            assertEquals(test, Arrays.asList("A-m2", "A-m1", "B-m2", "C-m1"));
+        }
+
+        manager = new TopicDispatcher<>();
+        test.clear();
+
+        // many '+' filters under a same prefix
+        {
+            for (int i = 0; i < 100; i++) {
+                final int n = i;
+                subscribe("sensors/+/value" + i, manager, (topic, message) -> {
+                    test.add(message + "-" + n);
+                });
+            }
+            subscribe("sensors/device1/value50", manager, (topic, message) -> {
+                test.add(message + "-exact");
+            });
+            assertPublished("sensors/device1/value50", "A", manager);
+            assertPublished("sensors/device2/value99", "B", manager);
+            assertNotPublished("sensors/device1/value100", "C", manager);
+            assertEquals(test, Arrays.asList("A-exact", "A-50", "B-99"));
+        }
+    }
+
     @Test
     public void testRemoveTopicHandler() {
         TopicDispatcher<String> manager = new TopicDispatcher<>();
@@ -450,6 +498,600 @@ public class TopicHandleManagerTest {
         }
     }
 
+    @Test
+    public void testModifyHandlersWhileDispatching() {
+        final TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        final TopicHandler<String> h2 = (topic, message) -> {
+            test.add(message + "-m2");
+        };
+
+        // add and remove handlers in a handler
+        {
+            subscribe("/abc/#", manager, new TopicHandler<String>() {
+                @Override
+                public void handleTopic(String topic, String message) {
+                    test.add(message + "-m1");
+                    manager.removeHandler("/abc/#", this);
+                    manager.addHandler("/abc/def", h2);
+                }
+            });
+
+            // changes are not applied to a dispatching message
+            assertPublished("/abc/def", "A", manager);
+            assertEquals(test, Arrays.asList("A-m1"));
+            test.clear();
+
+            assertPublished("/abc/def", "B", manager);
+            assertNotPublished("/abc/ghi", "C", manager);
+            assertEquals(test, Arrays.asList("B-m2"));
+        }
+    }
+
+    @Test
+    public void testCollectHandlers() {
+        final TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        TopicHandler<String> h1 = (topic, message) -> {};
+        TopicHandler<String> h2 = (topic, message) -> {};
+        subscribe("abc/#", manager, h1);
+        subscribe("abc/+/ghi", manager, h2);
+
+        // reuse a collection
+        List<TopicHandler<String>> handlers = new ArrayList<>();
+        assertTrue(manager.collectHandlers("abc/def/ghi", handlers));
+        assertEquals(handlers, Arrays.asList(h1, h2));
+        handlers.clear();
+        assertTrue(manager.collectHandlers(new StringBuilder("abc"), handlers));
+        assertEquals(handlers, Arrays.asList(h1));
+        handlers.clear();
+        assertFalse(manager.collectHandlers("ab", handlers));
+        assertFalse(manager.collectHandlers("", handlers));
+        assertTrue(handlers.isEmpty());
+
+        // dispatch recursively from a handler
+        subscribe("nested/+", manager, (topic, message) -> {
+            test.add(message + "-n1");
+            if ("nested/a".equals(topic)) {
+                manager.dispatch("nested/b", message + "2");
+            }
+        });
+        subscribe("nested/#", manager, (topic, message) -> {
+            test.add(message + "-n2");
+        });
+        assertPublished("nested/a", "A", manager);
+        assertEquals(test, Arrays.asList("A-n2", "A-n1", "A2-n2", "A2-n1"));
+    }
+
+    @Test
+    public void testCompile() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        String[] filters = {
+            "#", "/#", "+", "/", "abc", "abc/", "abc/#", "abc/+", "abc/+/", "abc//abc",
+            "abc/+/def/+", "+/abc", "/abc/+/def", "/abc/def/#", "abc/def/ghi", "+/+/+"
+        };
+        String[] topics = {
+            "/", "//", "abc", "abc/", "abc/abc", "abc//", "abc//abc", "abc/aaa/def/bbb",
+            "def/abc", "/abc/aaa/def", "/abc/def", "/abc/def/ghi", "abc/def/ghi", "xyz"
+        };
+        for (final String filter : filters) {
+            subscribe(filter, manager, (topic, message) -> {
+                test.add(message + "-" + filter);
+            });
+        }
+
+        List<List<String>> expected = new ArrayList<>();
+        for (String topic : topics) {
+            test.clear();
+            manager.dispatch(topic, topic);
+            expected.add(new ArrayList<>(test));
+        }
+
+        // same handlers in same order
+        manager.compile();
+        assertTrue(manager.isCompiled());
+        for (int i = 0; i < topics.length; i++) {
+            test.clear();
+            manager.dispatch(topics[i], topics[i]);
+            assertEquals(test, expected.get(i));
+        }
+
+        // changes after compiling
+        TopicHandler<String> h1 = (topic, message) -> {
+            test.add(message + "-h1");
+        };
+        subscribe("xyz", manager, h1);
+        assertFalse(manager.isCompiled());
+        test.clear();
+        assertPublished("xyz", "A", manager);
+        assertPublished("abc", "B", manager);
+        assertEquals(test, Arrays.asList("A-#", "A-h1", "A-+", "B-#", "B-abc/#", "B-abc", "B-+"));
+
+        manager.compile();
+        assertTrue(manager.removeHandler("xyz", h1));
+        test.clear();
+        assertPublished("xyz", "C", manager);
+        assertEquals(test, Arrays.asList("C-#", "C-+"));
+    }
+
+    @Test
+    public void testMatchCache() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        TopicHandler<String> h1 = (topic, message) -> {
+            test.add(message + "-c1");
+        };
+        TopicHandler<String> h2 = (topic, message) -> {
+            test.add(message + "-c2");
+        };
+
+        assertNull(manager.getMatchCacheStats());
+        manager.enableMatchCache(100);
+        subscribe("abc/+", manager, h1);
+
+        assertPublished("abc/def", "A", manager);
+        assertPublished("abc/def", "B", manager);
+        assertNotPublished("xyz", "C", manager);
+        assertNotPublished("xyz", "D", manager);
+        assertEquals(test, Arrays.asList("A-c1", "B-c1"));
+        assertEquals(manager.getMatchCacheStats().hitCount(), 2);
+        assertEquals(manager.getMatchCacheStats().missCount(), 2);
+        test.clear();
+
+        // changes of handlers are applied to cached topics
+        subscribe("abc/def", manager, h2);
+        subscribe("xyz", manager, h2);
+        assertPublished("abc/def", "E", manager);
+        assertPublished("xyz", "F", manager);
+        assertEquals(test, Arrays.asList("E-c2", "E-c1", "F-c2"));
+        test.clear();
+
+        subscribe("+", manager, h1);
+        assertPublished("xyz", "G", manager);
+        manager.removeHandler("abc/+", h1);
+        assertPublished("abc/def", "H", manager);
+        assertEquals(test, Arrays.asList("G-c2", "G-c1", "H-c2"));
+        test.clear();
+
+        manager.disableMatchCache();
+        assertNull(manager.getMatchCacheStats());
+        assertPublished("abc/def", "I", manager);
+        assertEquals(test, Arrays.asList("I-c2"));
+    }
+
+    @Test
+    public void testBulkHandlers() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        TopicHandler<String> h1 = (topic, message) -> {
+            test.add(message + "-b1");
+        };
+        TopicHandler<String> h2 = (topic, message) -> {
+            test.add(message + "-b2");
+        };
+        subscribe("abc/def", manager, h1);
+        manager.compile();
+
+        Map<String, TopicHandler<String>> subscriptions = new LinkedHashMap<>();
+        subscriptions.put("abc/+", h1);
+        subscriptions.put("abc/#", h2);
+        subscriptions.put("xyz", h2);
+        manager.addHandlers(subscriptions.entrySet());
+        assertFalse(manager.isCompiled());
+        assertPublished("abc/def", "A", manager);
+        assertPublished("xyz", "B", manager);
+        assertEquals(test, Arrays.asList("A-b2", "A-b1", "A-b1", "B-b2"));
+        test.clear();
+
+        // nothing is changed if any topic-filter is invalid
+        try {
+            manager.addHandlers(Arrays.asList(new SimpleEntry<>("ghi", h1), new SimpleEntry<>("a/#/b", h1)));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertNotPublished("ghi", "C", manager);
+
+        assertEquals(manager.removeHandlers(subscriptions.entrySet()), 3);
+        assertEquals(manager.removeHandlers(subscriptions.entrySet()), 0);
+        assertNotPublished("xyz", "D", manager);
+        assertPublished("abc/def", "E", manager);
+        assertEquals(test, Arrays.asList("E-b1"));
+        test.clear();
+
+        manager.replaceHandlers(Arrays.asList(new SimpleEntry<>("+/+", h2)));
+        assertPublished("abc/def", "F", manager);
+        assertNotPublished("abc", "G", manager);
+        assertEquals(test, Arrays.asList("F-b2"));
+
+        manager.replaceHandlers(new ArrayList<Map.Entry<String, TopicHandler<String>>>());
+        assertNotPublished("abc/def", "H", manager);
+    }
+
+    @Test
+    public void testRemoveSubscription() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        TopicHandler<String> h1 = (topic, message) -> {
+            test.add(message + "-r1");
+        };
+        TopicSubscription<String> s1 = manager.addHandler("abc/+/#", h1);
+        TopicSubscription<String> s2 = manager.addHandler("abc/+/#", h1);
+        TopicSubscription<String> s3 = manager.addHandler("xyz", h1);
+        assertEquals(s1.getTopicFilter(), "abc/+/#");
+        assertSame(s1.getHandler(), h1);
+
+        // removes the specified one of the same pairs
+        manager.compile();
+        assertTrue(manager.removeSubscription(s2));
+        assertFalse(manager.removeSubscription(s2));
+        assertPublished("abc/def", "A", manager);
+        assertEquals(test, Arrays.asList("A-r1"));
+        test.clear();
+
+        // a handle of another dispatcher
+        assertFalse(new TopicDispatcher<String>().removeSubscription(s1));
+
+        List<TopicSubscription<String>> added = manager.addHandlers(
+                Arrays.asList(new SimpleEntry<>("abc/def", h1), new SimpleEntry<>("ghi", h1)));
+        assertEquals(added.get(1).getTopicFilter(), "ghi");
+        assertEquals(manager.removeSubscriptions(Arrays.asList(s1, s2, added.get(0))), 2);
+        assertNotPublished("abc/def", "B", manager);
+        assertPublished("ghi", "C", manager);
+        assertTrue(manager.removeSubscription(s3));
+        assertTrue(manager.removeSubscription(added.get(1)));
+        assertNotPublished("ghi", "D", manager);
+        assertEquals(test, Arrays.asList("C-r1"));
+    }
+
+    @Test
+    public void testDispatchUtf8() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+
+        subscribe("abc/+", manager, (topic, message) -> {
+            test.add(topic + ":" + message);
+        });
+        subscribe("\u6e29\u5ea6/#", manager, (topic, message) -> {
+            test.add(topic + ":" + message);
+        });
+
+        byte[] bytes = "xxabc/defyy".getBytes(StandardCharsets.UTF_8);
+        assertTrue(manager.dispatchUtf8(bytes, 2, 7, "A"));
+        assertFalse(manager.dispatchUtf8(bytes, 2, 3, "B"));
+        assertFalse(manager.dispatchUtf8(bytes, 2, 0, "C"));
+        assertTrue(manager.dispatchUtf8("\u6e29\u5ea6/\u5ba4\u5185".getBytes(StandardCharsets.UTF_8), 0, 13, "D"));
+
+        ByteBuffer buffer = ByteBuffer.wrap("xxabc/ghi".getBytes(StandardCharsets.UTF_8));
+        buffer.position(2);
+        assertTrue(manager.dispatchUtf8(buffer, "E"));
+        assertEquals(buffer.position(), 2);
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        direct.put("abc/jkl".getBytes(StandardCharsets.UTF_8)).flip();
+        assertTrue(manager.dispatchUtf8(direct, "F"));
+        assertFalse(manager.dispatchUtf8(ByteBuffer.allocate(0), "G"));
+        assertEquals(test, Arrays.asList("abc/def:A", "\u6e29\u5ea6/\u5ba4\u5185:D", "abc/ghi:E", "abc/jkl:F"));
+
+        try {
+            manager.dispatchUtf8(bytes, 8, 4, "H");
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @Test
+    public void testHandlerDeduplication() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+        TopicHandler<String> h1 = (topic, message) -> test.add(message + "-1");
+        MatchedFiltersTopicHandler<String> h2 = new MatchedFiltersTopicHandler<String>() {
+            @Override
+            public void handleTopic(String topic, String message) {
+                test.add(message + "-2");
+            }
+
+            @Override
+            public void handleTopic(String topic, String message, List<String> topicFilters) {
+                test.add(message + "-2" + topicFilters);
+            }
+        };
+        manager.addHandler("a/#", h1);
+        manager.addHandler("a/+/c", h2);
+        manager.addHandler("a/+/c", h1);
+        TopicSubscription<String> s = manager.addHandler("a/b/c", h2);
+
+        manager.dispatch("a/b/c", "A");
+        assertEquals(test, Arrays.asList("A-1", "A-2", "A-2", "A-1"));
+        test.clear();
+
+        manager.enableHandlerDeduplication();
+        manager.dispatch("a/b/c", "B");
+        manager.dispatch("a/x/c", "C");
+        manager.compile();
+        manager.dispatchUtf8("a/b/c".getBytes(StandardCharsets.UTF_8), 0, 5, "D");
+        manager.dispatchBatch(Arrays.asList(new SimpleEntry<>("a/b/c", "E")));
+        assertEquals(test, Arrays.asList("B-1", "B-2[a/b/c, a/+/c]", "C-1", "C-2[a/+/c]",
+                "D-1", "D-2[a/b/c, a/+/c]", "E-1", "E-2[a/b/c, a/+/c]"));
+        test.clear();
+
+        // the number of a handler is kept while registered
+        manager.removeSubscription(s);
+        manager.removeHandler("a/#", h1);
+        manager.addHandler("a/b/+", h2);
+        manager.dispatch("a/b/c", "F");
+        manager.disableHandlerDeduplication();
+        manager.dispatch("a/b/c", "G");
+        assertEquals(test, Arrays.asList("F-2[a/b/+, a/+/c]", "F-1", "G-2", "G-2", "G-1"));
+    }
+
+    @Test
+    public void testSingleChildChain() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+        TopicHandler<String> handler = (topic, message) -> test.add(topic);
+        manager.addHandler("org/site/building/+/telemetry", handler);
+
+        assertPublished("org/site/building/1/telemetry", "A", manager);
+        assertNotPublished("org/site/buildings/1/telemetry", "A", manager);
+        assertNotPublished("org/site/buildin/1/telemetry", "A", manager);
+        assertNotPublished("org/site/building", "A", manager);
+        assertNotPublished("org/site", "A", manager);
+
+        // split the chain, and merge again
+        TopicSubscription<String> s = manager.addHandler("org/site", handler);
+        manager.addHandler("org/other/#", handler);
+        assertPublished("org/site", "B", manager);
+        assertPublished("org/other/building/1/telemetry", "B", manager);
+        assertPublished("org/site/building/2/telemetry", "B", manager);
+        manager.removeSubscription(s);
+        manager.removeHandler("org/other/#", handler);
+        assertNotPublished("org/site", "C", manager);
+        assertPublished("org/site/building/3/telemetry", "C", manager);
+
+        manager.addHandler("/a/b", handler);
+        assertPublished("/a/b", "D", manager);
+        assertNotPublished("a/b", "D", manager);
+        assertEquals(test, Arrays.asList("org/site/building/1/telemetry", "org/site",
+                "org/other/building/1/telemetry", "org/site/building/2/telemetry",
+                "org/site/building/3/telemetry", "/a/b"));
+    }
+
+    @Test
+    public void testMemoryReportOfChain() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+        TopicHandler<String> handler = (topic, message) -> test.add(topic);
+        StringBuilder filter = new StringBuilder("org");
+        for (int i = 0; i < 100; i++) {
+            filter.append("/level").append(i);
+        }
+        manager.addHandler(filter.toString(), handler);
+
+        // the root keeps the chain, and the last hierarchy keeps the handler
+        MemoryReport report = manager.getMemoryReport();
+        assertEquals(report.getNodeCount(), 2);
+        assertEquals(report.getLevelNameCount(), 101);
+        // names and the joined path of 793 chars once, not for each hierarchy
+        assertTrue(report.getStructureBytes() < 101 * 40);
+
+        // split the chain, and merge again
+        TopicSubscription<String> s = manager.addHandler("org/level0/level1/+", handler);
+        assertEquals(manager.getMemoryReport().getNodeCount(), 5);
+        assertPublished(filter.toString(), "A", manager);
+        manager.removeSubscription(s);
+        assertEquals(manager.getMemoryReport().getNodeCount(), 2);
+        assertEquals(manager.getMemoryReport().getStructureBytes(), report.getStructureBytes());
+        assertPublished(filter.toString(), "B", manager);
+        assertEquals(test.size(), 2);
+    }
+
+    @Test
+    public void testMemoryReport() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+        TopicHandler<String> handler = (topic, message) -> test.add(topic);
+        for (int i = 0; i < 20; i++) {
+            // many children, each has one child
+            manager.addHandler(new StringBuilder("devices/").append(i).append("/telemetry").toString(), handler);
+        }
+        manager.addHandler("devices/+/telemetry", handler);
+        manager.addHandler("$share/g/devices/#", handler);
+
+        MemoryReport report = manager.getMemoryReport();
+        assertEquals(report.getNodeCount(), 1 + 1 + 21 + 21);
+        assertEquals(report.getSubscriptionCount(), 22);
+        // "devices", "telemetry", "+", "#" and 20 numbers; each is one string object
+        assertEquals(report.getDistinctLevelNameCount(), 24);
+        assertEquals(report.getLevelNameCount(), 24);
+        assertFalse(report.isCompiled());
+
+        manager.compile();
+        MemoryReport compiled = manager.getMemoryReport();
+        assertTrue(compiled.isCompiled());
+        assertEquals(compiled.getSubscriptionCount(), 22);
+        assertTrue(compiled.getStructureBytes() < report.getStructureBytes());
+
+        for (int i = 0; i < 20; i++) {
+            assertPublished("devices/" + i + "/telemetry", "A", manager);
+        }
+        assertNotPublished("sensors/20/telemetry", "A", manager);
+        assertEquals(test.size(), 20 * 3);
+    }
+
+    @Test
+    public void testPrefilter() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+        TopicHandler<String> handler = (topic, message) -> test.add(topic);
+        manager.addHandler("devices/+/telemetry", handler);
+        manager.addHandler("$share/g/sensors/#", handler);
+        DispatchMetrics metrics = manager.enableMetrics();
+        manager.enablePrefilter();
+
+        assertPublished("devices/1/telemetry", "A", manager);
+        assertPublished("sensors", "A", manager);
+        assertNotPublished("device/1/telemetry", "A", manager);
+        assertNotPublished("other", "A", manager);
+        assertNotPublished("devices/1/status", "A", manager);
+        assertEquals(manager.getPrefilterRejectedCount(), 2L);
+        assertEquals(metrics.getDispatchCount(), 5L);
+        assertEquals(metrics.getUnmatchedCount(), 3L);
+
+        // rebuilt for changes of handlers
+        TopicSubscription<String> s = manager.addHandler("other", handler);
+        manager.compile();
+        assertPublished("other", "B", manager);
+        manager.removeSubscription(s);
+        assertNotPublished("other", "B", manager);
+        assertEquals(manager.getPrefilterRejectedCount(), 3L);
+
+        // all topics pass with a wildcard at the first level
+        s = manager.addHandler("+/+/status", handler);
+        assertPublished("devices/1/status", "C", manager);
+        assertNotPublished("unknown", "C", manager);
+        manager.removeSubscription(s);
+        assertNotPublished("unknown", "C", manager);
+        assertEquals(manager.getPrefilterRejectedCount(), 4L);
+
+        manager.disablePrefilter();
+        assertNotPublished("unknown", "D", manager);
+        assertEquals(manager.getPrefilterRejectedCount(), 4L);
+        assertEquals(test, Arrays.asList("devices/1/telemetry", "sensors", "other", "devices/1/status"));
+    }
+
+    @Test
+    public void testTopicFilterValidation() {
+        assertArrayEquals(TopicFilters.levelsOf("/a//+/#"), new String[] { "", "a", "", "+", "#" });
+        assertArrayEquals(TopicFilters.levelsOf("$SYS/+"), new String[] { "$SYS", "+" });
+        assertArrayEquals(TopicFilters.levelsOf("$share/g/a/#"), new String[] { "a", "#" });
+        assertArrayEquals(TopicFilters.levelsOf("$share/g//"), new String[] { "", "" });
+        assertArrayEquals(TopicFilters.levelsOf("\u00e9/\u3042/\ud83d\ude00"),
+                new String[] { "\u00e9", "\u3042", "\ud83d\ude00" });
+        assertSame(TopicFilters.levelsOf("a/telemetry")[1], TopicFilters.levelsOf("b/telemetry")[1]);
+
+        char[] longest = new char[65535];
+        Arrays.fill(longest, 'a');
+        assertEquals(TopicFilters.levelsOf(new String(longest)).length, 1);
+        char[] multiByte = new char[65535 / 3];
+        Arrays.fill(multiByte, '\u3042');
+        assertEquals(TopicFilters.levelsOf(new String(multiByte)).length, 1);
+
+        for (String invalid : Arrays.asList("", "a#", "#a", "a/#/", "a/b#", "+a", "a+/b", "a/++", "a\u0000b",
+                "a\ud83d", "\ude00a", "$share/g", "$share//a", "$share/+/a", "$share/g/", "$share/a#b/c",
+                new String(longest) + "a", new String(multiByte) + "\u00e9")) {
+            try {
+                TopicFilters.levelsOf(invalid);
+                fail(invalid);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage().startsWith("invalid topic format: "));
+            }
+        }
+    }
+
+    @Test
+    public void testPriority() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+        manager.addHandler("a/#", (topic, message) -> test.add("archive-" + message));
+        manager.addHandler("a/+", (topic, message) -> test.add("plus-" + message), 5);
+        manager.addHandler("a/b", new ConsumingTopicHandler<String>() {
+            @Override
+            public boolean consumeTopic(String topic, String message) {
+                test.add("consume-" + message);
+                return message.startsWith("X");
+            }
+
+            @Override
+            public void handleTopic(String topic, String message) {
+                test.add("handle-" + message);
+            }
+        }, 10);
+        manager.addHandler("+/b", (topic, message) -> test.add("first-" + message), 20);
+        TopicSubscription<String> low = manager.addHandler("#", (topic, message) -> test.add("low-" + message), -1);
+        assertEquals(low.getPriority(), -1);
+
+        assertPublished("a/b", "A", manager);
+        assertEquals(test, Arrays.asList("first-A", "consume-A", "plus-A", "archive-A", "low-A"));
+        test.clear();
+        assertPublished("a/b", "X", manager);
+        assertEquals(test, Arrays.asList("first-X", "consume-X"));
+        test.clear();
+        assertPublished("a/c", "C", manager);
+        assertEquals(test, Arrays.asList("plus-C", "archive-C", "low-C"));
+        test.clear();
+
+        manager.compile();
+        manager.enableMatchCache(10);
+        assertPublished("a/b", "X", manager);
+        assertPublished("a/b", "X", manager);
+        assertEquals(test, Arrays.asList("first-X", "consume-X", "first-X", "consume-X"));
+        test.clear();
+
+        assertEquals(manager.dispatchBatch(Arrays.asList(new SimpleEntry<>("a/b", "A"),
+                new SimpleEntry<>("a/b", "X"), new SimpleEntry<>("a/b", "B"))), 3);
+        assertEquals(test, Arrays.asList("first-A", "first-X", "first-B", "consume-A", "consume-X", "consume-B",
+                "plus-A", "plus-B", "archive-A", "archive-B", "low-A", "low-B"));
+        test.clear();
+
+        // same priorities keep the order of matching
+        manager.removeSubscription(low);
+        manager.addHandler("a/b", (topic, message) -> test.add("second-" + message), 20);
+        assertPublished("a/b", "X", manager);
+        assertEquals(test, Arrays.asList("second-X", "first-X", "consume-X"));
+    }
+
+    @Test
+    public void testParameterizedHandler() {
+        TopicDispatcher<String> manager = new TopicDispatcher<>();
+        final List<String> test = new ArrayList<>();
+        ParameterizedTopicHandler<String> handler = new ParameterizedTopicHandler<String>() {
+            @Override
+            public void handleTopic(String topic, String message, TopicParameters parameters) {
+                test.add(message + parameters);
+            }
+
+            @Override
+            public void handleTopic(String topic, String message) {
+                fail();
+            }
+        };
+        manager.addHandler("devices/+/sensors/+", handler);
+        manager.addHandler("devices/#", handler);
+        manager.addHandler("$share/g/+/x", handler);
+        manager.addHandler("a/b", handler);
+
+        assertPublished("devices/d1/sensors/s2", "A", manager);
+        assertPublished("devices", "B", manager);
+        assertPublished("/x", "C", manager);
+        assertPublished("a/b", "D", manager);
+        assertEquals(test, Arrays.asList("A[d1/sensors/s2]", "A[d1, s2]", "B[]", "C[]", "D[]"));
+        test.clear();
+
+        manager.compile();
+        assertEquals(manager.dispatchBatch(Arrays.asList(new SimpleEntry<>("devices/d3/sensors/", "E"),
+                new SimpleEntry<>("devices/d3/sensors/", "F"))), 2);
+        assertEquals(test, Arrays.asList("E[d3/sensors/]", "F[d3/sensors/]", "E[d3, ]", "F[d3, ]"));
+
+        TopicParameters parameters = TopicParameters.of("devices/d1/sensors/s2",
+                TopicFilters.levelsOf("devices/+/sensors/+"));
+        assertEquals(parameters.size(), 2);
+        assertEquals(parameters.get(1), "s2");
+        assertEquals(parameters.start(1), 19);
+        assertEquals(parameters.end(1), 21);
+        try {
+            parameters.get(2);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+            // expected
+        }
+    }
+
     private static void subscribe(String topic, TopicDispatcher<String> m, TopicHandler<String> h) {
         m.addHandler(topic, h);
     }